@@ -0,0 +1,107 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: Throughput of FieldIndexMergingIterator over an in memory shard, one document per
+ * operation, so that the gc profiler reports allocation per document ( gc.alloc.rate.norm ).
+ *
+ *     java -jar benchmarks/target/benchmarks.jar FieldIndexMergingIteratorBenchmark -prof gc
+ *
+ * Assumptions: The shard is built once per trial from a fixed seed. scanShard walks every
+ * document with DOCUMENT_SCAN, seeking the shard again once it is exhausted; lookupDocument
+ * seeks each document's range in turn, as a client resolving document ids would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FieldIndexMergingIteratorBenchmark {
+
+    @Param({"5", "20"})
+    public int fieldCount;
+
+    @Param({"0", "10"})
+    public int extraFiPerValue;
+
+    @Param({"1", "4"})
+    public int dataTypes;
+
+    @Param({"0", "0.1"})
+    public double missingFiRate;
+
+    @Param({"1000"})
+    public int documentsPerShard;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private SortedMap<Key, Value> data;
+    private List<String> documentIds;
+    private String shard;
+    private Range shardRange;
+
+    private FieldIndexMergingIterator scanIterator;
+    private FieldIndexMergingIterator lookupIterator;
+    private int lookupPosition = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final ShardData shardData = new ShardData("20200201_1", fieldCount, extraFiPerValue, dataTypes, missingFiRate, documentsPerShard);
+        data = shardData.generate(42);
+        documentIds = shardData.getDocumentIds();
+        shard = shardData.getShard();
+        final Key shardKey = new Key(shard);
+        shardRange = new Range(shardKey, true, shardKey.followingKey(PartialKey.ROW), false);
+
+        final Map<String, String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.DOCUMENT_SCAN, "true");
+        options.put(FieldIndexMergingIterator.BATCH_SIZE, String.valueOf(batchSize));
+        scanIterator = new FieldIndexMergingIterator();
+        scanIterator.init(new SortedMapIterator(data), options, new MockIteratorEnvironment());
+        scanIterator.seek(shardRange, Collections.emptyList(), false);
+
+        lookupIterator = new FieldIndexMergingIterator();
+        lookupIterator.init(new SortedMapIterator(data), new HashMap<>(), new MockIteratorEnvironment());
+    }
+
+    @Benchmark
+    public void scanShard(final Blackhole blackhole) throws IOException {
+        if (!scanIterator.hasTop()) {
+            scanIterator.seek(shardRange, Collections.emptyList(), false);
+            if (!scanIterator.hasTop()) {
+                // every document is missing an fi key
+                return;
+            }
+        }
+        blackhole.consume(scanIterator.getTopKey());
+        blackhole.consume(scanIterator.getTopValue());
+        scanIterator.next();
+    }
+
+    @Benchmark
+    public void lookupDocument(final Blackhole blackhole) throws IOException {
+        final Key documentKey = new Key(shard, documentIds.get(lookupPosition));
+        lookupPosition = (lookupPosition + 1) % documentIds.size();
+        lookupIterator.seek(new Range(documentKey, true, documentKey.followingKey(PartialKey.ROW_COLFAM), false), Collections.emptyList(), false);
+        if (lookupIterator.hasTop()) {
+            blackhole.consume(lookupIterator.getTopValue());
+        }
+    }
+}
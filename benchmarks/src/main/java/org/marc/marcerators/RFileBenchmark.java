@@ -0,0 +1,160 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.rfile.RFile;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: Throughput of FieldIndexMergingIterator over a shard table written to a local RFile
+ * by ShardTableGenerator, read through RFile scanners with index and data block caches, one
+ * document per operation.
+ *
+ *     java -jar benchmarks/target/benchmarks.jar RFileBenchmark -prof gc
+ *
+ * Assumptions: The file is generated once per trial into a temporary directory. The caches
+ * are sized by dataCacheSize; 0 disables them and every block is read and decompressed again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class RFileBenchmark {
+
+    @Param({"20"})
+    public int fieldsPerDocument;
+
+    @Param({"10000"})
+    public int documentsPerShard;
+
+    @Param({"4"})
+    public int shards;
+
+    @Param({"1"})
+    public int dataTypes;
+
+    @Param({"1.0"})
+    public double zipfExponent;
+
+    @Param({"0.1", "5"})
+    public double orphanFiRate;
+
+    @Param({"0.05"})
+    public double missingFiRate;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    // bytes for each of the index and data caches
+    @Param({"0", "67108864"})
+    public long dataCacheSize;
+
+    private File directory;
+    private String file;
+    private FileSystem fs;
+
+    private List<Range> lookupRanges;
+    private int lookupPosition = 0;
+
+    private Scanner scanScanner;
+    private Iterator<Map.Entry<Key, Value>> scanEntries;
+    private Scanner lookupScanner;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("rfile-benchmark").toFile();
+        file = new File(directory, "shards.rf").getPath();
+        fs = FileSystem.getLocal(new Configuration());
+
+        final ShardTableGenerator generator = new ShardTableGenerator();
+        generator.shards = shards;
+        generator.documentsPerShard = documentsPerShard;
+        generator.fieldsPerDocument = fieldsPerDocument;
+        generator.dataTypes = dataTypes;
+        generator.zipfExponent = zipfExponent;
+        generator.orphanFiRate = orphanFiRate;
+        generator.missingFiRate = missingFiRate;
+        generator.write(file);
+
+        // the range of every document, interleaving shards
+        lookupRanges = new ArrayList<>();
+        final List<List<Range>> perShard = new ArrayList<>();
+        generator.getDocumentIds().forEach((shard, ids) -> {
+            final List<Range> ranges = new ArrayList<>();
+            ids.forEach(id -> {
+                final Key documentKey = new Key(shard, id);
+                ranges.add(new Range(documentKey, true, documentKey.followingKey(PartialKey.ROW_COLFAM), false));
+            });
+            perShard.add(ranges);
+        });
+        for (int i = 0; i < documentsPerShard; i++) {
+            for (List<Range> ranges : perShard) {
+                lookupRanges.add(ranges.get(i));
+            }
+        }
+
+        final Map<String, String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.DOCUMENT_SCAN, "true");
+        options.put(FieldIndexMergingIterator.BATCH_SIZE, String.valueOf(batchSize));
+        scanScanner = newScanner(options);
+        scanScanner.setRange(new Range());
+        scanEntries = scanScanner.iterator();
+
+        lookupScanner = newScanner(new HashMap<>());
+    }
+
+    private Scanner newScanner(final Map<String, String> options) {
+        final Scanner scanner;
+        if (dataCacheSize > 0) {
+            scanner = RFile.newScanner().from(file).withFileSystem(fs).withIndexCache(dataCacheSize).withDataCache(dataCacheSize).build();
+        } else {
+            scanner = RFile.newScanner().from(file).withFileSystem(fs).build();
+        }
+        scanner.addScanIterator(new IteratorSetting(50, "fi", FieldIndexMergingIterator.class, options));
+        return scanner;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        scanScanner.close();
+        lookupScanner.close();
+        fs.delete(new Path(directory.getPath()), true);
+    }
+
+    @Benchmark
+    public void scanTable(final Blackhole blackhole) {
+        if (!scanEntries.hasNext()) {
+            scanEntries = scanScanner.iterator();
+        }
+        blackhole.consume(scanEntries.next());
+    }
+
+    @Benchmark
+    public void lookupDocument(final Blackhole blackhole) {
+        lookupScanner.setRange(lookupRanges.get(lookupPosition));
+        lookupPosition = (lookupPosition + 1) % lookupRanges.size();
+        for (Map.Entry<Key, Value> entry : lookupScanner) {
+            blackhole.consume(entry);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Purpose: Builds a shard of documents the way TestFieldIndexMergingIterator.generateData does,
+ * an event key and an fi key per field value, for the benchmarks.
+ *
+ * Assumptions: Generation is seeded, so every run of a benchmark sees the same shard.
+ */
+final class ShardData {
+
+    static final String NULL = "\u0000";
+
+    private final String shard;
+    private final int fieldCount;
+    private final int extraFiPerValue;
+    private final int dataTypes;
+    private final double missingFiRate;
+    private final int documents;
+
+    // datatype \x00 uid of every document, in key order
+    private final List<String> documentIds = new ArrayList<>();
+
+    ShardData(final String shard, final int fieldCount, final int extraFiPerValue, final int dataTypes,
+              final double missingFiRate, final int documents) {
+        this.shard = shard;
+        this.fieldCount = fieldCount;
+        this.extraFiPerValue = extraFiPerValue;
+        this.dataTypes = dataTypes;
+        this.missingFiRate = missingFiRate;
+        this.documents = documents;
+    }
+
+    /**
+     * @param seed random seed
+     * @return the shard's keys
+     */
+    SortedMap<Key, Value> generate(final long seed) {
+        final Random random = new Random(seed);
+        final SortedMap<Key, Value> map = new TreeMap<>();
+        documentIds.clear();
+        for (int d = 0; d < documents; d++) {
+            final String dataType = "datatype" + (d % dataTypes);
+            final String uid = String.format("%08x.%08x.%08x", random.nextInt(), random.nextInt(), d);
+            documentIds.add(dataType + NULL + uid);
+            // a document that is missing an fi key is missing it for a single field
+            final int missingField = random.nextDouble() < missingFiRate ? random.nextInt(fieldCount) : -1;
+            for (int f = 0; f < fieldCount; f++) {
+                final String fieldName = "FIELD" + f;
+                final String value = "value" + random.nextInt(1000);
+                //  row            cf                 cq
+                // shard datatype\u0000uid : fieldname\u0000fieldvalue
+                map.put(new Key(shard, dataType + NULL + uid, fieldName + NULL + value), new Value());
+                //  row            cf                 cq
+                // shard fi\u0000fieldname : fieldvalue\u0000datatype\u0000uid
+                if (f != missingField) {
+                    map.put(new Key(shard, "fi" + NULL + fieldName, value + NULL + dataType + NULL + uid), new Value());
+                }
+                for (int x = 0; x < extraFiPerValue; x++) {
+                    map.put(new Key(shard, "fi" + NULL + fieldName, "value" + random.nextInt(1000) + NULL + dataType + NULL
+                            + String.format("%08x.%08x", random.nextInt(), random.nextInt())), new Value());
+                }
+            }
+        }
+        documentIds.sort(null);
+        return map;
+    }
+
+    String getShard() {
+        return shard;
+    }
+
+    List<String> getDocumentIds() {
+        return documentIds;
+    }
+}
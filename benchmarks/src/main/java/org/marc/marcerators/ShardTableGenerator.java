@@ -0,0 +1,159 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.client.rfile.RFile;
+import org.apache.accumulo.core.client.rfile.RFileWriter;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Purpose: Writes a synthetic shard table straight into a local RFile, with the key layout of
+ * TestFieldIndexMergingIterator.generateData, so iterators can be measured against real file
+ * readers with their seeks and block decompression.
+ *
+ *     java -cp benchmarks/target/benchmarks.jar org.marc.marcerators.ShardTableGenerator \
+ *         --output /tmp/shards.rf --shards 4 --documents 10000 --fields 20
+ *
+ * Field values follow a Zipf distribution over VALUES_PER_FIELD values. Orphan fi entries
+ * point at uids that have no events, as left behind by partial deletes, and documents may be
+ * missing the fi key of one field.
+ *
+ * Assumptions: One shard is built in memory at a time and appended in key order. Generation
+ * is seeded, so the same settings always produce the same file.
+ */
+public class ShardTableGenerator {
+
+    static final String NULL = "\u0000";
+
+    static final int VALUES_PER_FIELD = 10000;
+
+    int shards = 1;
+    int documentsPerShard = 1000;
+    int fieldsPerDocument = 20;
+    int dataTypes = 1;
+    double zipfExponent = 1.0;
+    // orphan fi entries per document
+    double orphanFiRate = 0.1;
+    // documents missing the fi key of one field
+    double missingFiRate = 0.0;
+    long seed = 42;
+
+    // datatype \x00 uid of every document, per shard and in key order
+    private final Map<String, List<String>> documentIds = new TreeMap<>();
+
+    /**
+     * @param shard index of the shard
+     * @return name of the shard, in the yyyyMMdd_n form of the shard table
+     */
+    static String shardName(final int shard) {
+        return "20200201_" + shard;
+    }
+
+    /**
+     * Write every shard to the file, replacing it.
+     * @param file local path of the RFile
+     * @throws IOException if the file cannot be written
+     */
+    void write(final String file) throws IOException {
+        final FileSystem fs = FileSystem.getLocal(new Configuration());
+        fs.delete(new Path(file), false);
+        final Random random = new Random(seed);
+        final ZipfSampler values = new ZipfSampler(VALUES_PER_FIELD, zipfExponent);
+        documentIds.clear();
+        // shard names sort as strings, so shard 10 is written before shard 2
+        final TreeSet<String> shardOrder = new TreeSet<>();
+        for (int shard = 0; shard < shards; shard++) {
+            shardOrder.add(shardName(shard));
+        }
+        try (RFileWriter writer = RFile.newWriter().to(file).withFileSystem(fs).build()) {
+            writer.startDefaultLocalityGroup();
+            for (String shard : shardOrder) {
+                for (Map.Entry<Key, Value> entry : generateShard(shard, random, values).entrySet()) {
+                    writer.append(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return keys of a single shard
+     */
+    SortedMap<Key, Value> generateShard(final String shard, final Random random, final ZipfSampler values) {
+        final SortedMap<Key, Value> map = new TreeMap<>();
+        final List<String> ids = new ArrayList<>();
+        final Value empty = new Value(new byte[0]);
+        for (int d = 0; d < documentsPerShard; d++) {
+            final String dataType = "datatype" + (d % dataTypes);
+            final String uid = uid(random);
+            ids.add(dataType + NULL + uid);
+            final int missingField = random.nextDouble() < missingFiRate ? random.nextInt(fieldsPerDocument) : -1;
+            for (int f = 0; f < fieldsPerDocument; f++) {
+                final String fieldName = "FIELD" + f;
+                final String value = "value" + values.sample(random);
+                //  row            cf                 cq
+                // shard datatype\u0000uid : fieldname\u0000fieldvalue
+                map.put(new Key(shard, dataType + NULL + uid, fieldName + NULL + value), empty);
+                //  row            cf                 cq
+                // shard fi\u0000fieldname : fieldvalue\u0000datatype\u0000uid
+                if (f != missingField) {
+                    map.put(new Key(shard, "fi" + NULL + fieldName, value + NULL + dataType + NULL + uid), empty);
+                }
+            }
+            // whole orphans per document, plus one more with the remaining probability
+            final int orphans = (int) orphanFiRate + (random.nextDouble() < orphanFiRate % 1 ? 1 : 0);
+            for (int o = 0; o < orphans; o++) {
+                final String fieldName = "FIELD" + random.nextInt(fieldsPerDocument);
+                map.put(new Key(shard, "fi" + NULL + fieldName, "value" + values.sample(random) + NULL + dataType + NULL + uid(random)), empty);
+            }
+        }
+        ids.sort(null);
+        documentIds.put(shard, ids);
+        return map;
+    }
+
+    private static String uid(final Random random) {
+        return String.format("%08x.%08x.%08x", random.nextInt(), random.nextInt(), random.nextInt());
+    }
+
+    /**
+     * @return datatype \x00 uid of the documents written to each shard
+     */
+    Map<String, List<String>> getDocumentIds() {
+        return documentIds;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final ShardTableGenerator generator = new ShardTableGenerator();
+        String output = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            switch (args[i]) {
+                case "--output": output = value; break;
+                case "--shards": generator.shards = Integer.parseInt(value); break;
+                case "--documents": generator.documentsPerShard = Integer.parseInt(value); break;
+                case "--fields": generator.fieldsPerDocument = Integer.parseInt(value); break;
+                case "--datatypes": generator.dataTypes = Integer.parseInt(value); break;
+                case "--zipf": generator.zipfExponent = Double.parseDouble(value); break;
+                case "--orphans": generator.orphanFiRate = Double.parseDouble(value); break;
+                case "--missing": generator.missingFiRate = Double.parseDouble(value); break;
+                case "--seed": generator.seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        if (null == output) {
+            throw new IllegalArgumentException("--output is required");
+        }
+        generator.write(output);
+    }
+}
@@ -0,0 +1,36 @@
+package org.marc.marcerators;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Purpose: Draws ranks 0 to n - 1 with probability proportional to 1 / ( rank + 1 ) ^ exponent,
+ * so a few field values are very common and most are rare, as in real shard tables.
+ *
+ * Assumptions: The cumulative distribution is computed once, n doubles, and each sample is a
+ * binary search over it.
+ */
+final class ZipfSampler {
+
+    private final double[] cumulative;
+
+    ZipfSampler(final int n, final double exponent) {
+        if (n < 1) {
+            throw new IllegalArgumentException("At least one rank is required");
+        }
+        cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1d / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            cumulative[rank] /= sum;
+        }
+    }
+
+    int sample(final Random random) {
+        final int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+    }
+}
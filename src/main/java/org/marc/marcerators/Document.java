@@ -1,18 +1,363 @@
 package org.marc.marcerators;
 
-import org.apache.commons.lang3.builder.HashCodeBuilder;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
+/**
+ * Purpose: Fields of a document held as parallel arrays of names and values, in the order
+ * they were read, so that a field may have several values and no map is built per document.
+ *
+ * Assumptions: Field names are expected to be shared, interned strings. In JSON documentFields
+ * maps each field, in the order it first appears, to its value, or to an array of its values
+ * when it has several. getDocumentFields is a live map view of the fields, one value per field,
+ * where the last value of a field wins as it always has. Putting a field through the view
+ * replaces its last value and removing one removes all of its values. Documents are equal when
+ * they have the same docId and the same field values in the same order.
+ */
+@JsonPropertyOrder({"documentFields", "docId"})
 public class Document {
-    public Map<String,String> documentFields = new HashMap<>();
+
+    private static final String[] EMPTY = new String[0];
+
+    private final FieldMap view = new FieldMap();
+
+    /**
+     * The live map view of the fields, as returned by getDocumentFields. A map assigned here
+     * replaces the document's fields the next time the document is used, after which this holds
+     * the view again; later changes to the assigned map are not seen.
+     * @deprecated use getDocumentFields, or add, get and getAll for fields with several values
+     */
+    @Deprecated
+    @JsonIgnore
+    public Map<String, String> documentFields = view;
 
     public String docId;
 
+    private String[] names = EMPTY;
+    private String[] values = EMPTY;
+    private int size = 0;
+
+    /**
+     * Add a value of the field, keeping any it already has.
+     */
+    public void add(final String name, final String value) {
+        adoptAssignedFields();
+        if (size == names.length) {
+            final int capacity = Math.max(8, size * 2);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        names[size] = name;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Remove every field, keeping the arrays for reuse.
+     */
+    public void clear() {
+        documentFields = view;
+        clearFields();
+        docId = null;
+    }
+
+    private void clearFields() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * @return number of field values
+     */
+    public int size() {
+        adoptAssignedFields();
+        return size;
+    }
+
+    public String getName(final int index) {
+        adoptAssignedFields();
+        return names[index];
+    }
+
+    public String getValue(final int index) {
+        adoptAssignedFields();
+        return values[index];
+    }
+
+    /**
+     * @return the last value of the field, or null if it has none
+     */
+    public String get(final String name) {
+        adoptAssignedFields();
+        final int index = lastIndexOf(name);
+        return index < 0 ? null : values[index];
+    }
+
+    /**
+     * @return every value of the field, in the order they were added
+     */
+    public List<String> getAll(final String name) {
+        adoptAssignedFields();
+        final List<String> all = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                all.add(values[i]);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return true if no earlier value belongs to the field of the value at index
+     */
+    boolean isFirstValue(final int index) {
+        adoptAssignedFields();
+        for (int i = 0; i < index; i++) {
+            if (names[i].equals(names[index])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the next value of the same field as the value at index, or -1
+     */
+    int nextValue(final int index) {
+        adoptAssignedFields();
+        for (int i = index + 1; i < size; i++) {
+            if (names[i].equals(names[index])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the live map view of the fields, one value per field
+     */
+    @JsonIgnore
+    public Map<String, String> getDocumentFields() {
+        adoptAssignedFields();
+        return view;
+    }
+
+    /**
+     * Replace the fields, keeping docId.
+     */
+    @JsonIgnore
+    public void setDocumentFields(final Map<String, String> fields) {
+        documentFields = view;
+        clearFields();
+        fields.forEach(this::add);
+    }
+
+    /**
+     * @return each field mapped to its value, or to the list of its values when it has several
+     */
+    @JsonProperty("documentFields")
+    public Map<String, Object> getFieldValues() {
+        adoptAssignedFields();
+        final Map<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            if (isFirstValue(i)) {
+                fields.put(names[i], nextValue(i) < 0 ? values[i] : getAll(names[i]));
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Replace the fields from a map of values and lists of values, keeping docId.
+     */
+    @JsonProperty("documentFields")
+    public void setFieldValues(final Map<String, Object> fields) {
+        documentFields = view;
+        clearFields();
+        fields.forEach((name, value) -> {
+            if (value instanceof Collection) {
+                ((Collection<?>) value).forEach(v -> add(name, (String) v));
+            } else {
+                add(name, (String) value);
+            }
+        });
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Document)) {
+            return false;
+        }
+        final Document other = (Document) o;
+        adoptAssignedFields();
+        other.adoptAssignedFields();
+        if (size != other.size || !Objects.equals(docId, other.docId)) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (!names[i].equals(other.names[i]) || !Objects.equals(values[i], other.values[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
 
     @Override
     public int hashCode(){
-        return new HashCodeBuilder().append(documentFields).hashCode();
+        adoptAssignedFields();
+        int result = Objects.hashCode(docId);
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + names[i].hashCode();
+            result = 31 * result + Objects.hashCode(values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Take over the fields of a map assigned to documentFields.
+     */
+    private void adoptAssignedFields() {
+        if (documentFields != view) {
+            final Map<String, String> assigned = documentFields;
+            documentFields = view;
+            clearFields();
+            if (null != assigned) {
+                assigned.forEach(this::add);
+            }
+        }
+    }
+
+    private int lastIndexOf(final Object name) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Map view of the fields, by first appearance, each with its last value. Walks the arrays
+     * rather than copying them.
+     */
+    private final class FieldMap extends AbstractMap<String, String> {
+
+        @Override
+        public String get(final Object name) {
+            adoptAssignedFields();
+            final int index = lastIndexOf(name);
+            return index < 0 ? null : values[index];
+        }
+
+        @Override
+        public boolean containsKey(final Object name) {
+            adoptAssignedFields();
+            return lastIndexOf(name) >= 0;
+        }
+
+        @Override
+        public String put(final String name, final String value) {
+            adoptAssignedFields();
+            final int index = lastIndexOf(name);
+            if (index < 0) {
+                add(name, value);
+                return null;
+            }
+            final String previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+
+        @Override
+        public String remove(final Object name) {
+            final String previous = get(name);
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!names[i].equals(name)) {
+                    names[kept] = names[i];
+                    values[kept] = values[i];
+                    kept++;
+                }
+            }
+            Arrays.fill(names, kept, size, null);
+            Arrays.fill(values, kept, size, null);
+            size = kept;
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            documentFields = view;
+            clearFields();
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public int size() {
+                    adoptAssignedFields();
+                    int fields = 0;
+                    for (int i = 0; i < size; i++) {
+                        if (isFirstValue(i)) {
+                            fields++;
+                        }
+                    }
+                    return fields;
+                }
+
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    adoptAssignedFields();
+                    return new Iterator<Entry<String, String>>() {
+                        // where to look for the next field, and the field last returned
+                        private int position = 0;
+                        private int current = -1;
+
+                        @Override
+                        public boolean hasNext() {
+                            while (position < size && !isFirstValue(position)) {
+                                position++;
+                            }
+                            return position < size;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            current = position++;
+                            final String name = names[current];
+                            return new SimpleEntry<String, String>(name, values[lastIndexOf(name)]) {
+                                @Override
+                                public String setValue(final String value) {
+                                    put(getKey(), value);
+                                    return super.setValue(value);
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (current < 0) {
+                                throw new IllegalStateException();
+                            }
+                            // no value of the field precedes it, so the fields before it stay in place
+                            FieldMap.this.remove(names[current]);
+                            position = current;
+                            current = -1;
+                        }
+                    };
+                }
+            };
+        }
     }
 }
@@ -0,0 +1,124 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Purpose: Compact binary encoding of a Document, avoiding the quoting and escaping of JSON.
+ *
+ * Layout, where every length and count is an unsigned varint:
+ *
+ * version ( one byte ), docId length, docId, field count, then per field value
+ * name length, name, value length, value
+ *
+ * A field with several values appears once per value.
+ *
+ * Strings are UTF-8. decode is the client side counterpart of toValue.
+ */
+public class DocumentBinaryCodec implements DocumentWriter {
+
+    public static final byte VERSION = 1;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+    @Override
+    public Value toValue(final Document doc) throws IOException {
+        buffer.reset();
+        buffer.write(VERSION);
+        writeString(doc.docId);
+        writeVarInt(doc.size());
+        for (int i = 0; i < doc.size(); i++) {
+            writeString(doc.getName(i));
+            writeString(doc.getValue(i));
+        }
+        return new Value(buffer.toByteArray());
+    }
+
+    private void writeString(final String str) {
+        final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+    private void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.write(value);
+    }
+
+    /**
+     * Decode a value produced by toValue.
+     * @param value iterator value
+     * @return document
+     * @throws IOException if the value is not a binary encoded document
+     */
+    public static Document decode(final Value value) throws IOException {
+        return decode(value.get());
+    }
+
+    /**
+     * Decode bytes produced by toValue.
+     * @param bytes encoded document
+     * @return document
+     * @throws IOException if the bytes are not a binary encoded document
+     */
+    public static Document decode(final byte[] bytes) throws IOException {
+        return new Reader(bytes).readDocument();
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Reader(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        Document readDocument() throws IOException {
+            if (bytes.length == 0 || bytes[position++] != VERSION) {
+                throw new IOException("Unsupported document encoding");
+            }
+            final Document doc = new Document();
+            doc.docId = readString();
+            final int fieldCount = readVarInt();
+            for (int i = 0; i < fieldCount; i++) {
+                final String fieldName = readString();
+                doc.add(fieldName, readString());
+            }
+            if (position != bytes.length) {
+                throw new IOException("Trailing bytes after document");
+            }
+            return doc;
+        }
+
+        private String readString() throws IOException {
+            final int length = readVarInt();
+            if (length < 0 || length > bytes.length - position) {
+                throw new IOException("Truncated document");
+            }
+            final String str = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return str;
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (position >= bytes.length) {
+                    throw new IOException("Truncated document");
+                }
+                final byte b = bytes[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+}
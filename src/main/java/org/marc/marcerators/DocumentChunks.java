@@ -0,0 +1,236 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Value;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Purpose: Keys of the chunks a large document is returned in when CHUNK_SIZE is set, and
+ * the client side reassembly of those chunks.
+ *
+ * A chunk key is the document's top key with the column qualifier extended by
+ *
+ * \x00 \x00 chunk \x00 index \x00 count
+ *
+ * where index and count are eight decimal digits. Chunk keys sort after the last event key of
+ * the document and before the next document, in chunk order.
+ *
+ * Chunks may be handed to a ChunkListener as they arrive, holding no more than a chunk at a
+ * time, or buffered until the whole document's value can be returned.
+ *
+ * Assumptions: Chunks of a document arrive in order, as they do within a scanner or a single
+ * range of a batch scanner, though chunks of documents from other ranges may be interleaved.
+ * The iterator reads and serializes the whole document before splitting it, so chunking limits
+ * the size of each returned value, not the memory used on the tablet server; that is capped by
+ * MAX_DOCUMENT_SIZE. Buffered reassembly holds the whole document on the client as well.
+ */
+public final class DocumentChunks {
+
+    private static final byte[] MARKER = "\u0000\u0000chunk\u0000".getBytes(StandardCharsets.UTF_8);
+
+    private static final int DIGITS = 8;
+
+    private static final int SUFFIX_LENGTH = MARKER.length + DIGITS + 1 + DIGITS;
+
+    // largest array most JVMs will allocate
+    private static final long MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    // index of the next chunk expected, by document key
+    private final Map<Key, Integer> expected = new HashMap<>();
+
+    // chunks held until the last arrives, by document key
+    private final Map<Key, List<Value>> partial = new HashMap<>();
+
+    /**
+     * Receives a document's chunks as they arrive.
+     */
+    public interface ChunkListener {
+        /**
+         * @param documentKey top key of the whole document
+         * @param index chunk index, from zero; should the first chunk be received again after a
+         * scan was resumed, the document starts over
+         * @param count number of chunks, 1 for a document that was not chunked
+         * @param chunk bytes of the chunk
+         * @throws IOException as thrown by the listener
+         */
+        void chunk(Key documentKey, int index, int count, Value chunk) throws IOException;
+    }
+
+    /**
+     * @param documentKey top key of the whole document
+     * @param index chunk index, from zero
+     * @param count number of chunks
+     * @return the key of the chunk
+     */
+    static Key chunkKey(final Key documentKey, final int index, final int count) {
+        final ByteSequence columnQualifier = documentKey.getColumnQualifierData();
+        final byte[] suffix = String.format("%0" + DIGITS + "d\u0000%0" + DIGITS + "d", index, count).getBytes(StandardCharsets.UTF_8);
+        final byte[] chunkQualifier = new byte[columnQualifier.length() + MARKER.length + suffix.length];
+        KeyBytes.copy(columnQualifier, 0, columnQualifier.length(), chunkQualifier, 0);
+        System.arraycopy(MARKER, 0, chunkQualifier, columnQualifier.length(), MARKER.length);
+        System.arraycopy(suffix, 0, chunkQualifier, columnQualifier.length() + MARKER.length, suffix.length);
+        return new Key(documentKey.getRowData().toArray(), documentKey.getColumnFamilyData().toArray(), chunkQualifier,
+                documentKey.getColumnVisibilityData().toArray(), documentKey.getTimestamp());
+    }
+
+    /**
+     * @return true if the key is the key of a chunk
+     */
+    public static boolean isChunk(final Key key) {
+        if (null == key) {
+            return false;
+        }
+        final ByteSequence columnQualifier = key.getColumnQualifierData();
+        final int start = columnQualifier.length() - SUFFIX_LENGTH;
+        if (start < 0 || !KeyBytes.regionEquals(columnQualifier, start, start + MARKER.length, MARKER)
+                || columnQualifier.byteAt(start + MARKER.length + DIGITS) != KeyBytes.NULL_BYTE) {
+            return false;
+        }
+        return parseDigits(columnQualifier, start + MARKER.length) >= 0 && parseDigits(columnQualifier, columnQualifier.length() - DIGITS) >= 0;
+    }
+
+    /**
+     * @param key chunk key
+     * @return index of the chunk, from zero
+     */
+    public static int getIndex(final Key key) {
+        final ByteSequence columnQualifier = key.getColumnQualifierData();
+        return parseDigits(columnQualifier, columnQualifier.length() - SUFFIX_LENGTH + MARKER.length);
+    }
+
+    /**
+     * @param key chunk key
+     * @return number of chunks of the document
+     */
+    public static int getCount(final Key key) {
+        final ByteSequence columnQualifier = key.getColumnQualifierData();
+        return parseDigits(columnQualifier, columnQualifier.length() - DIGITS);
+    }
+
+    /**
+     * @param key chunk key
+     * @return the top key the whole document would have been returned under
+     */
+    public static Key getDocumentKey(final Key key) {
+        final ByteSequence columnQualifier = key.getColumnQualifierData();
+        final byte[] documentQualifier = new byte[columnQualifier.length() - SUFFIX_LENGTH];
+        KeyBytes.copy(columnQualifier, 0, documentQualifier.length, documentQualifier, 0);
+        return new Key(key.getRowData().toArray(), key.getColumnFamilyData().toArray(), documentQualifier,
+                key.getColumnVisibilityData().toArray(), key.getTimestamp());
+    }
+
+    /**
+     * Hand an entry returned by the iterator to the listener, without buffering it.
+     * @param key returned key
+     * @param value returned value
+     * @param listener receives the chunk, or the whole value of a document that was not chunked
+     * @throws IOException as thrown by the listener
+     */
+    public void add(final Key key, final Value value, final ChunkListener listener) throws IOException {
+        if (!isChunk(key)) {
+            listener.chunk(key, 0, 1, value);
+            return;
+        }
+        final Key documentKey = getDocumentKey(key);
+        final int index = getIndex(key);
+        checkOrder(documentKey, index, getCount(key));
+        listener.chunk(documentKey, index, getCount(key), value);
+    }
+
+    /**
+     * Add an entry returned by the iterator, holding chunks until the last one arrives.
+     * @param key returned key
+     * @param value returned value
+     * @return the whole document's value once its last chunk is added, the value itself if
+     * the document was not chunked, otherwise null
+     * @throws IllegalStateException if the document is too large to be held in one value
+     */
+    public Value add(final Key key, final Value value) {
+        if (!isChunk(key)) {
+            return value;
+        }
+        final Key documentKey = getDocumentKey(key);
+        final int index = getIndex(key);
+        final int count = getCount(key);
+        checkOrder(documentKey, index, count);
+        if (index == 0) {
+            // a chunk sent again after a scan was resumed starts the document over
+            partial.put(documentKey, new ArrayList<>(count));
+        }
+        final List<Value> chunks = partial.get(documentKey);
+        chunks.add(value);
+        if (index < count - 1) {
+            return null;
+        }
+        partial.remove(documentKey);
+        return concatenate(chunks);
+    }
+
+    /**
+     * Record that the chunk arrived, in order.
+     */
+    private void checkOrder(final Key documentKey, final int index, final int count) {
+        if (index > 0) {
+            final Integer next = expected.get(documentKey);
+            if (null == next) {
+                throw new IllegalStateException("Chunk " + index + " received before the start of its document");
+            }
+            if (index != next) {
+                throw new IllegalStateException("Chunk " + index + " received when chunk " + next + " was expected");
+            }
+        }
+        if (index < count - 1) {
+            expected.put(documentKey, index + 1);
+        } else {
+            expected.remove(documentKey);
+        }
+    }
+
+    /**
+     * Copy the chunks into a single value, releasing each once it is copied.
+     */
+    private static Value concatenate(final List<Value> chunks) {
+        long length = 0;
+        for (Value chunk : chunks) {
+            length += chunk.getSize();
+        }
+        if (length > MAX_LENGTH) {
+            throw new IllegalStateException("Document of " + length + " bytes is too large to reassemble, add its chunks with a ChunkListener");
+        }
+        final byte[] document = new byte[(int) length];
+        int offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            final Value chunk = chunks.set(i, null);
+            System.arraycopy(chunk.get(), 0, document, offset, chunk.getSize());
+            offset += chunk.getSize();
+        }
+        return new Value(document);
+    }
+
+    /**
+     * @return number of documents whose last chunk has not been added
+     */
+    public int getPartialCount() {
+        return expected.size();
+    }
+
+    private static int parseDigits(final ByteSequence sequence, final int start) {
+        int result = 0;
+        for (int i = start; i < start + DIGITS; i++) {
+            final int digit = sequence.byteAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,265 @@
+package org.marc.marcerators;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.accumulo.core.client.AccumuloClient;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Purpose: Client side bulk fetch of documents by shard, datatype and uid, resolving them with
+ * FieldIndexMergingIterator through a BatchScanner rather than a Scanner per document.
+ *
+ * Documents are grouped by shard, and each shard is scanned as a whole with SHARD_DOCUMENT_IDS
+ * listing the requested shard \x00 datatype \x00 uid, so the iterator seeks from one document
+ * requested of the shard to the next rather than being handed a range per document. Documents
+ * are decoded as they are read, chunked documents are reassembled with DocumentChunks, and
+ * stats and profile keys are skipped.
+ *
+ * Assumptions: At most documentsPerScan documents are requested of a BatchScanner at a time,
+ * so a large request is fetched as several scans, one after the other, and only one scan's
+ * buffered entries are held at once. Shards, datatypes and uids may not contain commas, and
+ * shards may not contain nulls. Documents are returned in no particular order.
+ */
+public class DocumentFetcher {
+
+    private final AccumuloClient client;
+    private final String table;
+    private final Authorizations authorizations;
+
+    private int queryThreads = 8;
+    private int documentsPerScan = 10000;
+    private int iteratorPriority = 50;
+    private final Map<String, String> options = new HashMap<>();
+
+    public DocumentFetcher(final AccumuloClient client, final String table, final Authorizations authorizations) {
+        this.client = client;
+        this.table = table;
+        this.authorizations = authorizations;
+        options.put(FieldIndexMergingIterator.OUTPUT_FORMAT, "binary");
+    }
+
+    /**
+     * @param queryThreads threads of each BatchScanner, 8 by default
+     */
+    public DocumentFetcher setQueryThreads(final int queryThreads) {
+        this.queryThreads = queryThreads;
+        return this;
+    }
+
+    /**
+     * @param documentsPerScan documents requested of a BatchScanner at a time, 10000 by default
+     */
+    public DocumentFetcher setDocumentsPerScan(final int documentsPerScan) {
+        if (documentsPerScan < 1) {
+            throw new IllegalArgumentException("At least one document must be scanned at a time");
+        }
+        this.documentsPerScan = documentsPerScan;
+        return this;
+    }
+
+    public DocumentFetcher setIteratorPriority(final int iteratorPriority) {
+        this.iteratorPriority = iteratorPriority;
+        return this;
+    }
+
+    /**
+     * Set an option of FieldIndexMergingIterator, such as RETURN_FIELDS or CHUNK_SIZE. Output
+     * is binary unless OUTPUT_FORMAT is set to json.
+     */
+    public DocumentFetcher setOption(final String name, final String value) {
+        options.put(name, value);
+        return this;
+    }
+
+    /**
+     * @param documentIds documents to fetch
+     * @return the documents that exist and verify; close it to release a scan in progress
+     */
+    public DocumentIterator fetch(final Collection<DocumentId> documentIds) {
+        return new DocumentIterator(toScans(documentIds, documentsPerScan), new HashMap<>(options));
+    }
+
+    /**
+     * Group the documents by shard, in shard order, filling each scan with whole shards where
+     * they fit and splitting a shard with more than documentsPerScan documents across scans.
+     * @return the shards and SHARD_DOCUMENT_IDS of each scan
+     */
+    static List<ShardScan> toScans(final Collection<DocumentId> documentIds, final int documentsPerScan) {
+        final SortedMap<String, SortedSet<String>> byShard = new TreeMap<>();
+        for (DocumentId id : documentIds) {
+            byShard.computeIfAbsent(id.getShard(), shard -> new TreeSet<>()).add(id.getDocumentId());
+        }
+        final List<ShardScan> scans = new ArrayList<>();
+        ShardScan scan = new ShardScan();
+        for (Map.Entry<String, SortedSet<String>> entry : byShard.entrySet()) {
+            boolean shardAdded = false;
+            for (String documentId : entry.getValue()) {
+                if (scan.documentCount == documentsPerScan) {
+                    scans.add(scan);
+                    scan = new ShardScan();
+                    shardAdded = false;
+                }
+                if (!shardAdded) {
+                    scan.ranges.add(Range.exact(entry.getKey()));
+                    shardAdded = true;
+                }
+                scan.documentIds.add(entry.getKey() + FieldIndexMergingIterator.NULL + documentId);
+                scan.documentCount++;
+            }
+        }
+        if (scan.documentCount > 0) {
+            scans.add(scan);
+        }
+        return scans;
+    }
+
+    /**
+     * Shards scanned together and the documents requested of them.
+     */
+    static final class ShardScan {
+        final List<Range> ranges = new ArrayList<>();
+        final StringJoiner documentIds = new StringJoiner(",");
+        int documentCount = 0;
+    }
+
+    /**
+     * Shard, datatype and uid of a document.
+     */
+    public static final class DocumentId {
+        private final String shard;
+        private final String dataType;
+        private final String uid;
+
+        public DocumentId(final String shard, final String dataType, final String uid) {
+            this.shard = shard;
+            this.dataType = dataType;
+            this.uid = uid;
+        }
+
+        public String getShard() {
+            return shard;
+        }
+
+        public String getDataType() {
+            return dataType;
+        }
+
+        public String getUid() {
+            return uid;
+        }
+
+        /**
+         * @return datatype \x00 uid, as listed after the shard in SHARD_DOCUMENT_IDS
+         */
+        String getDocumentId() {
+            if (shard.indexOf(',') >= 0 || shard.indexOf(FieldIndexMergingIterator.NULL) >= 0 || dataType.indexOf(',') >= 0 || uid.indexOf(',') >= 0) {
+                throw new IllegalArgumentException("Shard, datatype and uid may not contain commas, nor the shard a null: " + shard + " " + dataType + " " + uid);
+            }
+            return dataType + FieldIndexMergingIterator.NULL + uid;
+        }
+    }
+
+    /**
+     * Streams documents from one BatchScanner at a time.
+     */
+    public class DocumentIterator implements Iterator<Document>, AutoCloseable {
+        private final List<ShardScan> scans;
+        private final Map<String, String> scanOptions;
+        private final boolean json;
+        private final DocumentChunks chunks = new DocumentChunks();
+        private final ObjectMapper objectMapper = new ObjectMapper();
+
+        // index of the first scan not yet started
+        private int position = 0;
+        private BatchScanner scanner = null;
+        private Iterator<Map.Entry<Key, Value>> entries = Collections.emptyIterator();
+        private Document next = null;
+
+        DocumentIterator(final List<ShardScan> scans, final Map<String, String> scanOptions) {
+            this.scans = scans;
+            this.scanOptions = scanOptions;
+            json = "json".equalsIgnoreCase(scanOptions.get(FieldIndexMergingIterator.OUTPUT_FORMAT));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (null == next) {
+                if (entries.hasNext()) {
+                    final Map.Entry<Key, Value> entry = entries.next();
+                    if (ScanMetrics.isStatsKey(entry.getKey()) || DocumentProfile.isProfileKey(entry.getKey())) {
+                        continue;
+                    }
+                    final Value value = chunks.add(entry.getKey(), entry.getValue());
+                    if (null != value) {
+                        next = decode(value);
+                    }
+                } else if (position < scans.size()) {
+                    nextScan();
+                } else {
+                    closeScanner();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Document next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Document document = next;
+            next = null;
+            return document;
+        }
+
+        private void nextScan() {
+            closeScanner();
+            final ShardScan scan = scans.get(position++);
+            scanOptions.put(FieldIndexMergingIterator.SHARD_DOCUMENT_IDS, scan.documentIds.toString());
+            try {
+                scanner = client.createBatchScanner(table, authorizations, queryThreads);
+            } catch (TableNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+            scanner.addScanIterator(new IteratorSetting(iteratorPriority, "fi", FieldIndexMergingIterator.class, scanOptions));
+            scanner.setRanges(scan.ranges);
+            entries = scanner.iterator();
+        }
+
+        private Document decode(final Value value) {
+            try {
+                return json ? objectMapper.readValue(value.get(), Document.class) : DocumentBinaryCodec.decode(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void closeScanner() {
+            if (null != scanner) {
+                scanner.close();
+                scanner = null;
+            }
+        }
+
+        /**
+         * Stop fetching; no further documents are returned.
+         */
+        @Override
+        public void close() {
+            closeScanner();
+            entries = Collections.emptyIterator();
+            position = scans.size();
+            next = null;
+        }
+    }
+}
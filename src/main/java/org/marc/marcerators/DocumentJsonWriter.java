@@ -0,0 +1,58 @@
+package org.marc.marcerators;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.accumulo.core.data.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Purpose: Streams a Document as JSON straight into a reusable byte buffer, producing the
+ * same output as ObjectMapper without building an intermediate String.
+ *
+ * Assumptions: Not thread safe; each iterator holds its own writer. The JsonFactory is shared.
+ */
+public class DocumentJsonWriter implements DocumentWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+    @Override
+    public Value toValue(final Document doc) throws IOException {
+        buffer.reset();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer, JsonEncoding.UTF8)) {
+            write(generator, doc);
+        }
+        return new Value(buffer.toByteArray());
+    }
+
+    private void write(final JsonGenerator generator, final Document doc) throws IOException {
+        generator.writeStartObject();
+        generator.writeObjectFieldStart("documentFields");
+        // each field once, in the order it first appears, with an array of its values if it has several
+        for (int i = 0; i < doc.size(); i++) {
+            if (!doc.isFirstValue(i)) {
+                continue;
+            }
+            int next = doc.nextValue(i);
+            if (next < 0) {
+                generator.writeStringField(doc.getName(i), doc.getValue(i));
+                continue;
+            }
+            generator.writeArrayFieldStart(doc.getName(i));
+            generator.writeString(doc.getValue(i));
+            for (; next >= 0; next = doc.nextValue(next)) {
+                generator.writeString(doc.getValue(next));
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+        generator.writeStringField("docId", doc.docId);
+        generator.writeEndObject();
+    }
+}
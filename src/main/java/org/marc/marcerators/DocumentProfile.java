@@ -0,0 +1,116 @@
+package org.marc.marcerators;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Purpose: With PROFILE set, explains how FieldIndexMergingIterator resolved each document. A
+ * profile follows each returned document and any of its chunks, and takes the place of a
+ * rejected document, under the document's key with the column qualifier extended by
+ * \x00 \x00 profile. Its value is a JSON object:
+ *
+ *     {"docId":..., "verified":..., "checks":[{"field":..., "value":..., "result":...,
+ *      "keysScanned":..., "nanos":...}, ...], "failedField":..., "readNanos":...,
+ *      "verifyNanos":..., "serializeNanos":...}
+ *
+ * Checks are listed in the order they were verified. A result is found, missing, cached found,
+ * cached missing, or skipped when the document had already failed. failedField names the field
+ * of the first missing fi key, or is null. readNanos covers reading the document's events and
+ * verifyNanos the sum of its checks.
+ *
+ * Assumptions: Profiles are written one at a time by the thread driving the iterator.
+ */
+public final class DocumentProfile {
+
+    static final byte SKIPPED = 0;
+    static final byte FOUND = 1;
+    static final byte MISSING = 2;
+    static final byte CACHED_FOUND = 3;
+    static final byte CACHED_MISSING = 4;
+
+    private static final String[] RESULTS = {"skipped", "found", "missing", "cached found", "cached missing"};
+
+    private static final byte[] PROFILE_SUFFIX = "\u0000\u0000profile".getBytes(StandardCharsets.UTF_8);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+    private JsonGenerator generator;
+    private String failedField;
+    private long verifyNanos;
+
+    /**
+     * Begin the profile of a document.
+     */
+    void start(final String docId, final boolean verified) throws IOException {
+        buffer.reset();
+        failedField = null;
+        verifyNanos = 0;
+        generator = JSON_FACTORY.createGenerator(buffer, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeStringField("docId", docId);
+        generator.writeBooleanField("verified", verified);
+        generator.writeArrayFieldStart("checks");
+    }
+
+    void addCheck(final String field, final String value, final byte result, final int keysScanned, final long nanos) throws IOException {
+        if (null == failedField && (result == MISSING || result == CACHED_MISSING)) {
+            failedField = field;
+        }
+        verifyNanos += nanos;
+        generator.writeStartObject();
+        generator.writeStringField("field", field);
+        generator.writeStringField("value", value);
+        generator.writeStringField("result", RESULTS[result]);
+        generator.writeNumberField("keysScanned", keysScanned);
+        generator.writeNumberField("nanos", nanos);
+        generator.writeEndObject();
+    }
+
+    /**
+     * @return the finished profile
+     */
+    Value finish(final long readNanos, final long serializeNanos) throws IOException {
+        generator.writeEndArray();
+        generator.writeStringField("failedField", failedField);
+        generator.writeNumberField("readNanos", readNanos);
+        generator.writeNumberField("verifyNanos", verifyNanos);
+        generator.writeNumberField("serializeNanos", serializeNanos);
+        generator.writeEndObject();
+        generator.close();
+        generator = null;
+        return new Value(buffer.toByteArray());
+    }
+
+    /**
+     * @param documentKey top key of the document
+     * @return the key its profile is returned under
+     */
+    static Key profileKey(final Key documentKey) {
+        final ByteSequence columnQualifier = documentKey.getColumnQualifierData();
+        final byte[] profileQualifier = new byte[columnQualifier.length() + PROFILE_SUFFIX.length];
+        KeyBytes.copy(columnQualifier, 0, columnQualifier.length(), profileQualifier, 0);
+        System.arraycopy(PROFILE_SUFFIX, 0, profileQualifier, columnQualifier.length(), PROFILE_SUFFIX.length);
+        return new Key(documentKey.getRowData().toArray(), documentKey.getColumnFamilyData().toArray(), profileQualifier,
+                documentKey.getColumnVisibilityData().toArray(), documentKey.getTimestamp());
+    }
+
+    /**
+     * @return true if the key was returned with a profile rather than a document
+     */
+    public static boolean isProfileKey(final Key key) {
+        final ByteSequence columnQualifier = key.getColumnQualifierData();
+        final int start = columnQualifier.length() - PROFILE_SUFFIX.length;
+        return start >= 0 && KeyBytes.regionEquals(columnQualifier, start, columnQualifier.length(), PROFILE_SUFFIX);
+    }
+}
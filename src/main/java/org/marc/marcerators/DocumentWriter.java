@@ -0,0 +1,32 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.Value;
+
+import java.io.IOException;
+
+/**
+ * Purpose: Serializes a verified Document into the value returned by the iterator.
+ */
+public interface DocumentWriter {
+
+    /**
+     * Serialize the document.
+     * @param doc document
+     * @return value holding the encoded document
+     * @throws IOException on serialization failure
+     */
+    Value toValue(Document doc) throws IOException;
+
+    /**
+     * @param format json or binary, the values of OUTPUT_FORMAT
+     * @return a new writer for the format
+     */
+    static DocumentWriter forFormat(final String format) {
+        if ("binary".equalsIgnoreCase(format)) {
+            return new DocumentBinaryCodec();
+        } else if ("json".equalsIgnoreCase(format)) {
+            return new DocumentJsonWriter();
+        }
+        throw new IllegalArgumentException("Unknown " + FieldIndexMergingIterator.OUTPUT_FORMAT + " " + format);
+    }
+}
@@ -0,0 +1,161 @@
+package org.marc.marcerators;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: Remembers whether fi keys exist, shared by every FieldIndexMergingIterator within
+ * a tablet server, so that documents fetched again and again are not re-verified each time.
+ *
+ * Assumptions: Entries are scoped by table, by the scan's authorizations, since a scan only
+ * sees the fi keys it is authorized to, and by a generation that the client supplies
+ * through VERIFY_CACHE_GENERATION. An iterator cannot see which files back its tablet, so
+ * correctness depends on the client: it must move to a new generation whenever the table's
+ * data changes, for instance after ingest, a deletion or a compaction. Until it does, both
+ * found and missing fi keys are answered from the cache, and a document written since may
+ * be rejected or one deleted since returned. Entries expire EXPIRY_PROPERTY seconds after
+ * they are written, which bounds how stale a forgotten generation can be.
+ *
+ * The cache is bounded by the approximate size of its entries and evicts the least recently
+ * used first. Its size and expiry are tablet server settings, general.custom. properties read
+ * by the first iterator that uses the cache; a later iterator seeing other settings logs that
+ * they are ignored until the tablet server restarts.
+ */
+public final class FieldIndexCache {
+
+    // bytes held by the cache, as general.custom.fieldindex.verify.cache.size, 64MB by default
+    public static final String SIZE_PROPERTY = "fieldindex.verify.cache.size";
+    // seconds an entry is kept after it is written, as general.custom.fieldindex.verify.cache.expiry, 600 by default, 0 never expires
+    public static final String EXPIRY_PROPERTY = "fieldindex.verify.cache.expiry";
+
+    static final long DEFAULT_SIZE = 64L * 1024 * 1024;
+    static final long DEFAULT_EXPIRY_SECONDS = 600;
+
+    private static final Logger LOG = LoggerFactory.getLogger(FieldIndexCache.class);
+
+    // object headers, references and the cached Boolean
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static FieldIndexCache shared = null;
+    private static boolean settingsIgnoredLogged = false;
+
+    private final Cache<Entry, Boolean> cache;
+    private final long maxBytes;
+    private final long expirySeconds;
+
+    FieldIndexCache(final long maxBytes, final long expirySeconds) {
+        this(maxBytes, expirySeconds, Ticker.systemTicker());
+    }
+
+    FieldIndexCache(final long maxBytes, final long expirySeconds, final Ticker ticker) {
+        if (maxBytes < 1 || expirySeconds < 0) {
+            throw new IllegalArgumentException(SIZE_PROPERTY + " must be positive and " + EXPIRY_PROPERTY + " must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.expirySeconds = expirySeconds;
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().ticker(ticker);
+        if (expirySeconds > 0) {
+            builder = builder.expireAfterWrite(expirySeconds, TimeUnit.SECONDS);
+        }
+        cache = builder
+                .maximumWeight(maxBytes)
+                .weigher((Entry entry, Boolean found) -> entry.weight())
+                .build();
+    }
+
+    /**
+     * @param maxBytes size of the cache, should this call create it
+     * @param expirySeconds seconds entries are kept, should this call create it
+     * @return the cache shared within this JVM
+     */
+    static synchronized FieldIndexCache getShared(final long maxBytes, final long expirySeconds) {
+        if (null == shared) {
+            shared = new FieldIndexCache(maxBytes, expirySeconds);
+        } else if ((shared.maxBytes != maxBytes || shared.expirySeconds != expirySeconds) && !settingsIgnoredLogged) {
+            settingsIgnoredLogged = true;
+            LOG.warn("FieldIndexCache holds {} bytes for {} seconds; {} bytes for {} seconds are ignored until the tablet server restarts",
+                    shared.maxBytes, shared.expirySeconds, maxBytes, expirySeconds);
+        }
+        return shared;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    long getExpirySeconds() {
+        return expirySeconds;
+    }
+
+    /**
+     * @return true if the fi key was found, false if it was missing, null if not known
+     */
+    Boolean get(final String scope, final byte[] shard, final byte[] columnFamily, final byte[] columnQualifier) {
+        return cache.getIfPresent(new Entry(scope, shard, columnFamily, columnQualifier));
+    }
+
+    void put(final String scope, final byte[] shard, final byte[] columnFamily, final byte[] columnQualifier, final boolean found) {
+        cache.put(new Entry(scope, shard, columnFamily, columnQualifier), found);
+    }
+
+    /**
+     * Drop every entry.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Table, generation and authorizations scope, and the fi key.
+     */
+    private static final class Entry {
+        final String scope;
+        final byte[] shard;
+        final byte[] columnFamily;
+        final byte[] columnQualifier;
+        final int hash;
+
+        Entry(final String scope, final byte[] shard, final byte[] columnFamily, final byte[] columnQualifier) {
+            this.scope = scope;
+            this.shard = shard;
+            this.columnFamily = columnFamily;
+            this.columnQualifier = columnQualifier;
+            int result = scope.hashCode();
+            result = 31 * result + Arrays.hashCode(shard);
+            result = 31 * result + Arrays.hashCode(columnFamily);
+            hash = 31 * result + Arrays.hashCode(columnQualifier);
+        }
+
+        int weight() {
+            return ENTRY_OVERHEAD + 2 * scope.length() + shard.length + columnFamily.length + columnQualifier.length;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            final Entry other = (Entry) o;
+            return hash == other.hash && scope.equals(other.scope) && Arrays.equals(columnQualifier, other.columnQualifier) &&
+                    Arrays.equals(columnFamily, other.columnFamily) && Arrays.equals(shard, other.shard);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
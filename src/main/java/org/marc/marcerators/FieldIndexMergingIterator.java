@@ -1,17 +1,21 @@
 package org.marc.marcerators;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Splitter;
 import org.apache.accumulo.core.data.*;
 import org.apache.accumulo.core.iterators.IteratorEnvironment;
 import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
 import org.apache.accumulo.core.iterators.WrappingIterator;
+import org.apache.accumulo.core.iterators.YieldCallback;
+import org.apache.accumulo.core.iterators.YieldingKeyValueIterator;
+import org.apache.accumulo.core.security.Authorizations;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.io.Text;
 
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Purpose: Using a document range will deep copy and seek to all FI keys
@@ -20,40 +24,570 @@ import java.util.*;
  * Assumptions: Assumes that the incoming range is a document range, meaning
  *
  * Key(shard,datatype \x00 uid );
+ *
+ * When DOCUMENT_SCAN is enabled any range may be used ( a shard row, a datatype prefix
+ * within a shard, or a range spanning several shards ) and each call to next() yields
+ * the next verified document. The top key is the last event key of the document, so a
+ * scan resumed after it will begin with the following document.
+ *
+ * With a BATCH_SIZE above one, up to that many documents of a shard are read before any
+ * are verified, and their fi keys are checked together in one sorted pass with a single
+ * source. DOCUMENT_IDS restricts a scan to the listed datatype \x00 uid documents, seeking
+ * directly to each of them in every shard of the range. SHARD_DOCUMENT_IDS lists
+ * shard \x00 datatype \x00 uid instead, so that each shard only seeks to its own documents
+ * and shards with none are skipped.
+ *
+ * RETURN_FIELDS limits the fields copied into the returned document and VERIFY_FIELDS the
+ * fields whose fi keys are checked. Fields in FIELDS_TO_SKIP are neither returned nor verified.
+ *
+ * With VERIFY_CACHE_GENERATION set, verification results are kept in the tablet server wide
+ * FieldIndexCache and fi keys already known to be present or missing are not sought again.
+ * Results are shared only between scans with the same authorizations. The client must change
+ * the generation whenever the table's data changes, as the iterator cannot tell; see
+ * FieldIndexCache for the tablet server settings that size the cache and expire its entries.
+ *
+ * With CHUNK_SIZE set, a document whose value is larger is returned as a sequence of values of
+ * at most that many bytes under the keys described by DocumentChunks. Chunking limits the size
+ * of each returned value only: a document is verified before any of it is returned, so it is
+ * read and serialized whole. A scan resumed after a chunk reads and serializes the document
+ * again and continues with its following chunk.
+ *
+ * MAX_DOCUMENT_SIZE caps the bytes of a document's returned fields and of its serialized value,
+ * which is what bounds the memory and the work a document costs, including each resume after a
+ * chunk. A document over the cap fails the scan with an IOException naming it.
+ *
+ * When yielding is enabled, MAX_FI_SEEKS and MAX_MILLIS_PER_SCAN bound the work done between
+ * seeks. Once either is spent the iterator yields before the next document it would read, at
+ * a key that sorts just before that document, so the resumed scan begins with it. Budgets are
+ * only checked between documents, and at least one document is read after every seek.
+ *
+ * The work of each scan is counted in ScanMetrics and totalled in the FieldIndexMetricsRegistry.
+ * With EMIT_STATS the counts are also returned under a stats key once the range is exhausted.
+ *
+ * With PROFILE set, a DocumentProfile follows each returned document and takes the place of each
+ * rejected one, listing the fi keys checked, what each check found and the time spent.
  */
-public class FieldIndexMergingIterator extends WrappingIterator {
+public class FieldIndexMergingIterator extends WrappingIterator implements YieldingKeyValueIterator<Key, Value> {
 
 
     public static final String NULL = "\u0000";
     public static final String FIELDS_TO_SKIP = "FIELDS_TO_SKIP";
+    // comma separated fields copied into the returned document, all fields by default
+    public static final String RETURN_FIELDS = "RETURN_FIELDS";
+    // comma separated fields whose fi keys are verified, all fields by default
+    public static final String VERIFY_FIELDS = "VERIFY_FIELDS";
+    public static final String DOCUMENT_SCAN = "DOCUMENT_SCAN";
+    // most deep copies of the source held for fi verification, 64 by default
+    public static final String MAX_DEEP_COPIES = "MAX_DEEP_COPIES";
+    // json ( default ) or binary, see DocumentBinaryCodec
+    public static final String OUTPUT_FORMAT = "OUTPUT_FORMAT";
+    // pooled ( default ) seeks a deep copy per field, sweep seeks one deep copy forward through the sorted fi keys
+    public static final String VERIFY_MODE = "VERIFY_MODE";
+
+    // documents of a shard that are verified together, 1 ( default ) verifies each document on its own
+    public static final String BATCH_SIZE = "BATCH_SIZE";
+    // comma separated datatype\x00uid documents to resolve, implies DOCUMENT_SCAN
+    public static final String DOCUMENT_IDS = "DOCUMENT_IDS";
+    // comma separated shard\x00datatype\x00uid documents to resolve, implies DOCUMENT_SCAN
+    public static final String SHARD_DOCUMENT_IDS = "SHARD_DOCUMENT_IDS";
+
+    // enables the tablet server wide FieldIndexCache; the client must change it whenever the table's data changes
+    public static final String VERIFY_CACHE_GENERATION = "VERIFY_CACHE_GENERATION";
+    /**
+     * Bytes held by the FieldIndexCache, only where the tablet server does not set
+     * FieldIndexCache.SIZE_PROPERTY.
+     * @deprecated size the cache with the tablet server setting instead
+     */
+    @Deprecated
+    public static final String VERIFY_CACHE_SIZE = "VERIFY_CACHE_SIZE";
+
+    // largest value returned, in bytes; larger documents are split into chunks. Unset returns documents whole
+    public static final String CHUNK_SIZE = "CHUNK_SIZE";
+    // largest document read or serialized, in bytes, 64MB by default; larger documents fail the scan
+    public static final String MAX_DOCUMENT_SIZE = "MAX_DOCUMENT_SIZE";
+
+    // fi seeks after which the scan yields, when yielding is enabled
+    public static final String MAX_FI_SEEKS = "MAX_FI_SEEKS";
+    // milliseconds after a seek at which the scan yields, when yielding is enabled
+    public static final String MAX_MILLIS_PER_SCAN = "MAX_MILLIS_PER_SCAN";
+
+    // returns the scan's ScanMetrics after its last document, false by default
+    public static final String EMIT_STATS = "EMIT_STATS";
+
+    // returns a DocumentProfile for each document read, false by default
+    public static final String PROFILE = "PROFILE";
+
+    // pool key of the single sweep source; field names are never empty
+    private static final String SWEEP_SOURCE = "";
+
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    // sorts after every fi\x00 column family within a shard
+    private static final Text FI_END = new Text("fi\u0001");
+
     Key topKey = null;
     Value topValue = null;
 
     private IteratorEnvironment env = null;
 
-    private String shard;
+    private byte[] shard = new byte[0];
 
     private List<String> fieldsToSkip = new ArrayList<>();
 
-    Collection<SortedKeyValueIterator<Key, Value>> deepCopiedSources = new ArrayList<>();
+    private final List<byte[]> fieldsToSkipBytes = new ArrayList<>();
+
+    // null when every field is returned or verified
+    private List<byte[]> returnFieldsBytes = null;
+    private List<byte[]> verifyFieldsBytes = null;
+
+    private boolean documentScan = false;
+
+    private boolean sweep = false;
+
+    private int batchSize = 1;
+
+    private TreeSet<ByteSequence> documentIds = null;
+
+    // requested documents by shard, null unless SHARD_DOCUMENT_IDS is given
+    private TreeMap<ByteSequence, TreeSet<ByteSequence>> shardDocumentIds = null;
+
+    private Range seekRange;
+    private Collection<ByteSequence> seekColumnFamilies;
+    private boolean seekInclusive;
+
+    private FieldIndexSourcePool sourcePool;
+
+    // null unless VERIFY_CACHE_GENERATION is given
+    private FieldIndexCache verifyCache = null;
+    private String verifyCacheScope;
+
+    // documents read for the current batch, reused across batches
+    private final List<PendingDocument> batch = new ArrayList<>();
+    private int batchCount = 0;
+    private int batchPosition = 0;
+    private boolean documentsRemain = false;
+
+    // fi keys that must exist for the current batch, reused across batches
+    private final List<FieldIndexCheck> fieldIndexChecks = new ArrayList<>();
+    private int fieldIndexCheckCount = 0;
+
+    // fi column families and verification outcomes per field name
+    private final Map<String, FieldInfo> fieldInfo = new HashMap<>();
+
+    // every fi seek goes through this range, whose keys are updated in place
+    private final ReusableKey fiStartKey = new ReusableKey();
+    private final ReusableKey fiEndKey = new ReusableKey();
+    private final Range fiRange = new Range(fiStartKey, true, fiEndKey, false);
+
+    private DocumentWriter documentWriter;
+
+    // field names shared by every document of the scan
+    private final FieldNames fieldNames = new FieldNames();
+
+    // last key read from the source
+    private final Key lastKey = new Key();
+
+    // 0 when documents are returned whole
+    private int chunkSize = 0;
+
+    private int maxDocumentSize = 64 * 1024 * 1024;
+
+    // value of the document being returned in chunks
+    private Key chunkedKey = null;
+    private byte[] chunkedBytes = null;
+    private int chunkedLength = 0;
+    private int chunkIndex = 0;
+    private int chunkCount = 0;
+
+    // document and first chunk to return when a scan resumes after a chunk
+    private Key resumeDocument = null;
+    private int resumeChunk = 0;
+
+    // null unless the tablet server enabled yielding
+    private YieldCallback<Key> yieldCallback = null;
+    private long maxFieldIndexSeeks = Long.MAX_VALUE;
+    private long maxNanosPerScan = Long.MAX_VALUE;
+    private long scanStart = 0;
+    private boolean yielded = false;
+    // whether a document has been read since the last seek, before which budgets are not checked
+    private boolean readSinceSeek = false;
+
+    // work done since the last seek
+    private final ScanMetrics metrics = new ScanMetrics();
+    private final FieldIndexMetricsRegistry registry = FieldIndexMetricsRegistry.getInstance();
+    private long copiesAtSeek = 0;
+    private boolean emitStats = false;
+    private boolean statsReturned = false;
+
+    // null unless PROFILE is set
+    private DocumentProfile profile = null;
+    // profile to return once the document and its chunks have been returned
+    private Key profileKey = null;
+    private Value profileValue = null;
+    // document returned before the scan was torn down, whose profile is still to be returned
+    private Key resumeProfile = null;
+
     public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        chunkIndex = 0;
+        chunkCount = 0;
+        chunkedBytes = null;
+        resumeDocument = null;
+        resumeProfile = null;
+        profileValue = null;
+        flushMetrics();
+        metrics.reset();
+        copiesAtSeek = sourcePool.getCreatedCopies();
+        statsReturned = false;
+        yielded = false;
+        readSinceSeek = false;
+        scanStart = System.nanoTime();
+        if (chunkSize > 0 && DocumentChunks.isChunk(range.getStartKey())) {
+            final Key startKey = range.getStartKey();
+            resumeDocument = new Key(startKey);
+            resumeChunk = DocumentChunks.getIndex(startKey) + (range.isStartKeyInclusive() ? 0 : 1);
+            // the document is read again from its first event
+            range = new Range(new Key(startKey.getRow(), startKey.getColumnFamily()), true, range.getEndKey(), range.isEndKeyInclusive());
+        } else if (null != profile && isAfterDocument(range)) {
+            resumeProfile = new Key(range.getStartKey());
+            range = new Range(new Key(resumeProfile.getRow(), resumeProfile.getColumnFamily()), true, range.getEndKey(), range.isEndKeyInclusive());
+        }
+        seekRange = range;
+        seekColumnFamilies = columnFamilies;
+        seekInclusive = inclusive;
+        topValue = null;
+        batchCount = 0;
+        batchPosition = 0;
+
         // seek to the document
         super.seek(range,columnFamilies,inclusive);
 
-        if (!range.isInfiniteStartKey()) {
-            shard = range.getStartKey().getRow().toString();
-            Document doc = findTop();
-            if (null != doc) {
-                doc = mergeSources(doc);
-                if (doc != null) {
-                    topValue = new Value(docToJson(doc));
-                } else {
-                    topValue = null;
+        documentsRemain = documentScan || !range.isInfiniteStartKey();
+        if (documentsRemain) {
+            skipPartialDocument(range.getStartKey());
+            findNextDocument();
+        }
+    }
+
+    @Override
+    public void next() throws IOException {
+        topValue = null;
+        findNextDocument();
+    }
+
+    /**
+     * Resolves documents until one verifies or the range is exhausted. Outside of DOCUMENT_SCAN
+     * only the first document is considered.
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private void findNextDocument() throws IOException {
+        while (topValue == null) {
+            if (chunkIndex < chunkCount) {
+                nextChunk();
+            } else if (null != profileValue) {
+                topKey = profileKey;
+                topValue = profileValue;
+                profileValue = null;
+            } else if (batchPosition < batchCount) {
+                final PendingDocument pending = batch.get(batchPosition++);
+                long serializeNanos = 0;
+                if (pending.verified) {
+                    metrics.add(ScanMetrics.Counter.DOCUMENTS_VERIFIED, 1);
+                    if (null != resumeProfile && resumeProfile.equals(pending.key, PartialKey.ROW_COLFAM)) {
+                        // only the profile remains to be returned
+                        resumeProfile = null;
+                    } else {
+                        topKey = pending.key;
+                        final long start = System.nanoTime();
+                        topValue = serialize(pending.doc);
+                        serializeNanos = System.nanoTime() - start;
+                        if (topValue.getSize() > maxDocumentSize) {
+                            throw tooLarge(pending.doc.docId, topValue.getSize());
+                        }
+                        if (chunkSize > 0 && (topValue.getSize() > chunkSize || isResumedDocument(pending.key))) {
+                            startChunks();
+                        }
+                    }
+                    resumeDocument = null;
+                } else if (null != pending.doc && StringUtils.isNotBlank(pending.doc.docId)) {
+                    metrics.add(ScanMetrics.Counter.DOCUMENTS_REJECTED, 1);
+                }
+                if (null != profile && null != pending.doc && StringUtils.isNotBlank(pending.doc.docId)) {
+                    profileDocument(pending, serializeNanos);
+                }
+            } else if (!documentsRemain || !fillBatch()) {
+                flushMetrics();
+                if (emitStats && !statsReturned && !yielded && metrics.get(ScanMetrics.Counter.EVENT_KEYS_READ) > 0) {
+                    returnStats();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hold the profile of a document until it and its chunks have been returned.
+     * @param pending document read and verified, or rejected
+     * @param serializeNanos time spent serializing the document
+     */
+    private void profileDocument(final PendingDocument pending, final long serializeNanos) throws IOException {
+        final Key key = DocumentProfile.profileKey(pending.key);
+        if (seekRange.afterEndKey(key)) {
+            return;
+        }
+        profile.start(pending.doc.docId, pending.verified);
+        final int dtUidLength = pending.key.getColumnFamilyData().length();
+        for (int i = 0; i < fieldIndexCheckCount; i++) {
+            final FieldIndexCheck check = fieldIndexChecks.get(i);
+            if (check.document == pending) {
+                final String value = new String(check.columnQualifier, 0, check.columnQualifier.length - dtUidLength - 1, StandardCharsets.UTF_8);
+                profile.addCheck(check.fieldName, value, check.result, check.keysScanned, check.nanos);
+            }
+        }
+        profileKey = key;
+        profileValue = profile.finish(pending.readNanos, serializeNanos);
+    }
+
+    /**
+     * @return true if the range starts just after a document key, as when a scan is resumed
+     * after returning the document but before returning its profile
+     */
+    private static boolean isAfterDocument(final Range range) {
+        final Key startKey = range.getStartKey();
+        return null != startKey && !range.isStartKeyInclusive() && startKey.getColumnQualifierData().length() > 0 &&
+                !DocumentProfile.isProfileKey(startKey) && !ScanMetrics.isStatsKey(startKey);
+    }
+
+    /**
+     * Return the scan's counts under a stats key following the last event read.
+     */
+    private void returnStats() {
+        statsReturned = true;
+        final Key statsKey = ScanMetrics.statsKey(lastKey);
+        if (!seekRange.afterEndKey(statsKey)) {
+            topKey = statsKey;
+            topValue = metrics.toValue();
+        }
+    }
+
+    /**
+     * Add the counts gathered since the last flush to the registry.
+     */
+    private void flushMetrics() {
+        if (null != sourcePool) {
+            metrics.set(ScanMetrics.Counter.DEEP_COPIES_CREATED, sourcePool.getCreatedCopies() - copiesAtSeek);
+        }
+        metrics.flushTo(registry);
+    }
+
+    /**
+     * Reads up to BATCH_SIZE documents of one shard and verifies them together.
+     * @return false if no documents remain in the range
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private boolean fillBatch() throws IOException {
+        flushMetrics();
+        batchCount = 0;
+        batchPosition = 0;
+        fieldIndexCheckCount = 0;
+        while (batchCount < batchSize && positionOnDocument()) {
+            // fi keys are only swept within a single shard
+            if (batchCount > 0 && !KeyBytes.equals(getSource().getTopKey().getRowData(), shard)) {
+                break;
+            }
+            // the first document after a seek is always read, so every resumed scan makes progress
+            if (readSinceSeek && isBudgetSpent()) {
+                // documents already read are verified and returned before yielding
+                if (batchCount > 0) {
+                    break;
+                }
+                if (yieldBeforeDocument()) {
+                    yielded = true;
+                    documentsRemain = false;
+                    return false;
+                }
+            }
+            if (batchCount == batch.size()) {
+                batch.add(new PendingDocument());
+            }
+            final long start = System.nanoTime();
+            final PendingDocument pending = batch.get(batchCount++);
+            findTop(pending);
+            readSinceSeek = true;
+            pending.readNanos = System.nanoTime() - start;
+            metrics.add(ScanMetrics.Counter.FIND_TOP_NANOS, pending.readNanos);
+        }
+        if (!documentScan || batchCount == 0) {
+            documentsRemain = false;
+        }
+        if (batchCount == 0) {
+            return false;
+        }
+        final long start = System.nanoTime();
+        mergeSources();
+        metrics.add(ScanMetrics.Counter.MERGE_SOURCES_NANOS, System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Hold the serialized top value so it can be returned a chunk at a time.
+     */
+    private void startChunks() {
+        chunkedKey = topKey;
+        chunkedBytes = topValue.get();
+        chunkedLength = topValue.getSize();
+        chunkCount = Math.max(1, (chunkedLength + chunkSize - 1) / chunkSize);
+        chunkIndex = isResumedDocument(topKey) ? resumeChunk : 0;
+        topValue = null;
+    }
+
+    private void nextChunk() {
+        final int offset = chunkIndex * chunkSize;
+        topKey = DocumentChunks.chunkKey(chunkedKey, chunkIndex, chunkCount);
+        topValue = new Value(chunkedBytes, offset, Math.min(chunkSize, chunkedLength - offset));
+        if (++chunkIndex == chunkCount) {
+            chunkedBytes = null;
+        }
+    }
+
+    private boolean isResumedDocument(final Key key) {
+        return null != resumeDocument && resumeDocument.equals(key, PartialKey.ROW_COLFAM);
+    }
+
+    private boolean isBudgetSpent() {
+        return null != yieldCallback &&
+                (metrics.get(ScanMetrics.Counter.FI_SEEKS) >= maxFieldIndexSeeks || System.nanoTime() - scanStart >= maxNanosPerScan);
+    }
+
+    /**
+     * Yield at the start of the document the source is positioned on. The yield key has the
+     * document's row and column family and an empty column qualifier, so it sorts before every
+     * event of the document and after everything returned so far.
+     * @return false if the yield key would not follow the start of the sought range
+     */
+    private boolean yieldBeforeDocument() {
+        final Key top = getSource().getTopKey();
+        final Key yieldKey = new Key(top.getRowData().toArray(), top.getColumnFamilyData().toArray(), EMPTY_BYTES, EMPTY_BYTES, Long.MAX_VALUE);
+        if (!seekRange.isInfiniteStartKey() && yieldKey.compareTo(seekRange.getStartKey()) <= 0) {
+            return false;
+        }
+        yieldCallback.yield(yieldKey);
+        return true;
+    }
+
+    private boolean positionOnDocument() throws IOException {
+        if (null != shardDocumentIds) {
+            return skipToShardDocumentId();
+        }
+        return null == documentIds ? skipToEvent() : skipToDocumentId();
+    }
+
+    /**
+     * A range that starts part way through an event would only see some of its fields,
+     * so move on to the following column family.
+     * @param startKey start key of the sought range
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private void skipPartialDocument(final Key startKey) throws IOException {
+        if (null != startKey && startKey.getColumnQualifierData().length() > 0 && getSource().hasTop() &&
+                startKey.equals(getSource().getTopKey(), PartialKey.ROW_COLFAM)) {
+            reseek(startKey.followingKey(PartialKey.ROW_COLFAM));
+        }
+    }
+
+    /**
+     * Advances the source past column families that are not events. The fi section of a
+     * shard is jumped over with a single seek.
+     * @return true if the source is positioned on an event key
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private boolean skipToEvent() throws IOException {
+        while (getSource().hasTop()) {
+            final Key key = getSource().getTopKey();
+            final ByteSequence columnFamily = key.getColumnFamilyData();
+            if (KeyBytes.startsWith(columnFamily, KeyBytes.FI_PREFIX)) {
+                if (!reseek(new Key(key.getRow(), FI_END))) {
+                    return false;
+                }
+            } else if (KeyBytes.indexOf(columnFamily, KeyBytes.NULL_BYTE, 0) < 0) {
+                if (!reseek(key.followingKey(PartialKey.ROW_COLFAM))) {
+                    return false;
                 }
             } else {
-                topValue = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Advances the source to the next requested document, seeking directly to each
+     * datatype\x00uid in the current shard before moving on to the following shard.
+     * @return true if the source is positioned on a requested document
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private boolean skipToDocumentId() throws IOException {
+        while (getSource().hasTop()) {
+            final Key key = getSource().getTopKey();
+            final ByteSequence columnFamily = key.getColumnFamilyData();
+            final ByteSequence documentId = documentIds.ceiling(columnFamily);
+            if (null == documentId) {
+                if (!reseek(key.followingKey(PartialKey.ROW))) {
+                    return false;
+                }
+            } else if (documentId.compareTo(columnFamily) == 0) {
+                return true;
+            } else if (!reseek(new Key(key.getRowData().toArray(), documentId.toArray(), EMPTY_BYTES, EMPTY_BYTES, Long.MAX_VALUE))) {
+                return false;
             }
         }
+        return false;
+    }
+
+    /**
+     * Advances the source to the next document requested of its shard, seeking directly to the
+     * next shard with requested documents once those of the current shard are passed.
+     * @return true if the source is positioned on a requested document
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private boolean skipToShardDocumentId() throws IOException {
+        while (getSource().hasTop()) {
+            final Key key = getSource().getTopKey();
+            final ByteSequence row = key.getRowData();
+            final TreeSet<ByteSequence> ids = shardDocumentIds.get(row);
+            final ByteSequence columnFamily = key.getColumnFamilyData();
+            final ByteSequence documentId = null == ids ? null : ids.ceiling(columnFamily);
+            if (null == documentId) {
+                final ByteSequence nextShard = shardDocumentIds.higherKey(row);
+                if (null == nextShard || !reseek(new Key(nextShard.toArray(), EMPTY_BYTES, EMPTY_BYTES, EMPTY_BYTES, Long.MAX_VALUE))) {
+                    return false;
+                }
+            } else if (documentId.compareTo(columnFamily) == 0) {
+                return true;
+            } else if (!reseek(new Key(row.toArray(), documentId.toArray(), EMPTY_BYTES, EMPTY_BYTES, Long.MAX_VALUE))) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Seeks the source forward to the given key, staying within the range we were sought to.
+     * @param start key to seek to
+     * @return false if the key is beyond the sought range
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private boolean reseek(final Key start) throws IOException {
+        final Range remaining = seekRange.clip(new Range(start, true, null, false), true);
+        if (null == remaining) {
+            return false;
+        }
+        getSource().seek(remaining, seekColumnFamilies, seekInclusive);
+        return true;
+    }
+
+    @Override
+    public void enableYielding(final YieldCallback<Key> callback) {
+        yieldCallback = callback;
     }
 
     @Override
@@ -78,101 +612,458 @@ public class FieldIndexMergingIterator extends WrappingIterator {
         env = iterEnv;
         // skip fields
         Splitter.on(",").split( options.getOrDefault(FIELDS_TO_SKIP,"LOAD_DATE,RAW_FILE,TERM_COUNT") ).forEach(fieldsToSkip::add);
+        fieldsToSkip.forEach( fn -> fieldsToSkipBytes.add(fn.getBytes(StandardCharsets.UTF_8)));
+        returnFieldsBytes = fieldList(options.get(RETURN_FIELDS));
+        verifyFieldsBytes = fieldList(options.get(VERIFY_FIELDS));
+        documentScan = Boolean.parseBoolean(options.getOrDefault(DOCUMENT_SCAN, "false"));
+        if (options.containsKey(DOCUMENT_IDS)) {
+            documentIds = new TreeSet<>();
+            Splitter.on(",").omitEmptyStrings().split(options.get(DOCUMENT_IDS)).forEach( id -> documentIds.add(new ArrayByteSequence(id)));
+            documentScan = true;
+        }
+        if (options.containsKey(SHARD_DOCUMENT_IDS)) {
+            if (null != documentIds) {
+                throw new IllegalArgumentException(DOCUMENT_IDS + " and " + SHARD_DOCUMENT_IDS + " may not both be given");
+            }
+            shardDocumentIds = new TreeMap<>();
+            for (String id : Splitter.on(",").omitEmptyStrings().split(options.get(SHARD_DOCUMENT_IDS))) {
+                final int shardEnd = id.indexOf(NULL);
+                if (shardEnd < 1) {
+                    throw new IllegalArgumentException(SHARD_DOCUMENT_IDS + " entry " + id + " has no shard");
+                }
+                shardDocumentIds.computeIfAbsent(new ArrayByteSequence(id.substring(0, shardEnd)), shardId -> new TreeSet<>())
+                        .add(new ArrayByteSequence(id.substring(shardEnd + 1)));
+            }
+            documentScan = true;
+        }
+        batchSize = Integer.parseInt(options.getOrDefault(BATCH_SIZE, "1"));
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(BATCH_SIZE + " must be positive");
+        }
+        documentWriter = DocumentWriter.forFormat(options.getOrDefault(OUTPUT_FORMAT, "json"));
+        emitStats = Boolean.parseBoolean(options.getOrDefault(EMIT_STATS, "false"));
+        if (Boolean.parseBoolean(options.getOrDefault(PROFILE, "false"))) {
+            profile = new DocumentProfile();
+        }
+        chunkSize = Integer.parseInt(options.getOrDefault(CHUNK_SIZE, "0"));
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException(CHUNK_SIZE + " must not be negative");
+        }
+        maxDocumentSize = Integer.parseInt(options.getOrDefault(MAX_DOCUMENT_SIZE, String.valueOf(maxDocumentSize)));
+        if (maxDocumentSize < 1) {
+            throw new IllegalArgumentException(MAX_DOCUMENT_SIZE + " must be positive");
+        }
+        if (options.containsKey(MAX_FI_SEEKS)) {
+            maxFieldIndexSeeks = Long.parseLong(options.get(MAX_FI_SEEKS));
+        }
+        if (options.containsKey(MAX_MILLIS_PER_SCAN)) {
+            maxNanosPerScan = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.get(MAX_MILLIS_PER_SCAN)));
+        }
+        if (maxFieldIndexSeeks < 1 || maxNanosPerScan < 1) {
+            throw new IllegalArgumentException(MAX_FI_SEEKS + " and " + MAX_MILLIS_PER_SCAN + " must be positive");
+        }
+        final String verifyMode = options.getOrDefault(VERIFY_MODE, "pooled");
+        if ("sweep".equalsIgnoreCase(verifyMode)) {
+            sweep = true;
+        } else if (!"pooled".equalsIgnoreCase(verifyMode)) {
+            throw new IllegalArgumentException("Unknown " + VERIFY_MODE + " " + verifyMode);
+        }
+        final int maxDeepCopies = Integer.parseInt(options.getOrDefault(MAX_DEEP_COPIES, "64"));
+        if (maxDeepCopies < 1) {
+            throw new IllegalArgumentException(MAX_DEEP_COPIES + " must be positive");
+        }
+        sourcePool = new FieldIndexSourcePool(source, env, maxDeepCopies);
+        if (options.containsKey(VERIFY_CACHE_GENERATION)) {
+            // results are only shared between scans that see the same fi keys, so scans whose authorizations are unknown are not cached
+            final String authorizations = getAuthorizationsScope();
+            if (null != authorizations) {
+                verifyCache = FieldIndexCache.getShared(getServerSetting(FieldIndexCache.SIZE_PROPERTY, options.get(VERIFY_CACHE_SIZE), FieldIndexCache.DEFAULT_SIZE),
+                        getServerSetting(FieldIndexCache.EXPIRY_PROPERTY, null, FieldIndexCache.DEFAULT_EXPIRY_SECONDS));
+                verifyCacheScope = getTableId() + NULL + options.get(VERIFY_CACHE_GENERATION) + NULL + authorizations;
+            }
+        }
     }
 
     /**
-     * Merge the deep copied sources to simulate field index iteration
-     * @param doc document
-     * @return document or null ( if sources do not merge )
+     * Seek deep copies to each fi key of the batch to simulate field index iteration,
+     * marking the documents whose sources do not merge
      * @throws IOException Accumulo I/O Exception.
      */
-    private Document mergeSources( final Document doc ) throws IOException {
-        final String goalDocId = doc.docId;
-        boolean notFound = false;
-        for(SortedKeyValueIterator<Key, Value> source : deepCopiedSources){
-            String fiUid = "";
-            while(source.hasTop()){
-                // look for the last null character since field values COULD have null within them
-                String valueDataTypeUid = source.getTopKey().getColumnQualifier().toString();
-                int lastNull = valueDataTypeUid.lastIndexOf(NULL);
-                fiUid = valueDataTypeUid.substring(lastNull+1);
-                if (fiUid.equals(goalDocId))
-                    break;
-                source.next();
+    private void mergeSources() throws IOException {
+        if (sweep || batchCount > 1) {
+            sortFieldIndexChecks();
+            // a single copy sweeps forward through the shard's fi section
+            final SortedKeyValueIterator<Key, Value> source = sourcePool.borrow(SWEEP_SOURCE);
+            try {
+                for(int i = 0; i < fieldIndexCheckCount; i++){
+                    final FieldIndexCheck check = fieldIndexChecks.get(i);
+                    // documents that already failed need no further seeks
+                    if (check.document.verified && !cachedOrVerify(source, check)){
+                        check.document.verified = false;
+                    }
+                }
+            } finally {
+                sourcePool.giveBack(SWEEP_SOURCE, source);
+            }
+        } else {
+            final PendingDocument pending = batch.get(0);
+            orderFieldIndexChecks();
+            for(int i = 0; i < fieldIndexCheckCount && pending.verified; i++){
+                final FieldIndexCheck check = fieldIndexChecks.get(i);
+                final Boolean cached = cachedResult(check);
+                if (null != cached) {
+                    pending.verified = cached;
+                    continue;
+                }
+                final SortedKeyValueIterator<Key, Value> source = sourcePool.borrow(check.fieldName);
+                try {
+                    // stop at the first missing fi key
+                    pending.verified = verify(source, check);
+                } finally {
+                    sourcePool.giveBack(check.fieldName, source);
+                }
             }
-            if (!fiUid.equals(goalDocId))
-                notFound = true;
         }
-        if (notFound){
+    }
+
+
+    /**
+     * Seek to value\x00datatype\x00uid; the top key, if any, must be exactly that fi key
+     * @param source deep copy to seek
+     * @param check fi key to verify
+     * @return true if the fi key exists
+     * @throws IOException Accumulo I/O Exception.
+     */
+    private boolean verify(final SortedKeyValueIterator<Key, Value> source, final FieldIndexCheck check) throws IOException {
+        fiStartKey.set(shard, check.field.columnFamily, check.columnQualifier);
+        fiEndKey.set(shard, check.field.followingColumnFamily, EMPTY_BYTES);
+        metrics.add(ScanMetrics.Counter.FI_SEEKS, 1);
+        final long start = null != profile ? System.nanoTime() : 0;
+        source.seek(fiRange, Collections.EMPTY_LIST, false);
+        final boolean found = source.hasTop() && KeyBytes.equals(source.getTopKey().getColumnQualifierData(), check.columnQualifier);
+        if (source.hasTop()) {
+            metrics.add(ScanMetrics.Counter.FI_KEYS_SCANNED, 1);
+            check.keysScanned = 1;
+        }
+        if (null != profile) {
+            check.nanos = System.nanoTime() - start;
+        }
+        check.result = found ? DocumentProfile.FOUND : DocumentProfile.MISSING;
+        check.field.recordCheck(!found);
+        if (null != verifyCache) {
+            verifyCache.put(verifyCacheScope, shard, check.field.columnFamily, check.columnQualifier, found);
+        }
+        return found;
+    }
+
+    private boolean cachedOrVerify(final SortedKeyValueIterator<Key, Value> source, final FieldIndexCheck check) throws IOException {
+        final Boolean cached = cachedResult(check);
+        return null != cached ? cached : verify(source, check);
+    }
+
+    /**
+     * @return whether the fi key was found by an earlier verification, or null if not known
+     */
+    private Boolean cachedResult(final FieldIndexCheck check) {
+        if (null == verifyCache) {
             return null;
         }
-        if (StringUtils.isNotBlank(doc.docId))
-            return doc;
-        return null;
+        final Boolean found = verifyCache.get(verifyCacheScope, shard, check.field.columnFamily, check.columnQualifier);
+        if (null != found) {
+            check.field.recordCheck(!found);
+            check.result = found ? DocumentProfile.CACHED_FOUND : DocumentProfile.CACHED_MISSING;
+        }
+        return found;
+    }
+
+    /**
+     * @param property general.custom. property of the tablet server
+     * @param option value to use where the tablet server does not set it, may be null
+     * @return the tablet server's setting, else the option, else the default
+     */
+    private long getServerSetting(final String property, final String option, final long defaultValue) {
+        String value = null;
+        try {
+            value = env.getServiceEnv().getConfiguration().getCustom(property);
+        } catch (UnsupportedOperationException e) {
+            // environments outside a tablet server have no settings
+        }
+        if (null == value) {
+            value = option;
+        }
+        return null == value ? defaultValue : Long.parseLong(value);
     }
 
+    /**
+     * @return the table being scanned, or an empty string where the environment cannot say
+     */
+    private String getTableId() {
+        try {
+            return String.valueOf(env.getTableId());
+        } catch (UnsupportedOperationException e) {
+            return "";
+        }
+    }
 
-    private String docToJson(Document doc) throws JsonProcessingException {
-        final ObjectMapper objectMapper = new ObjectMapper();
+    /**
+     * @return the scan's authorizations, sorted and each prefixed by its length, or null where
+     * the environment cannot say
+     */
+    private String getAuthorizationsScope() {
+        final Authorizations authorizations;
+        try {
+            authorizations = env.getAuthorizations();
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+        if (null == authorizations) {
+            return null;
+        }
+        // ISO-8859-1 maps each byte to one char, so strings sort as the unsigned bytes do
+        final List<String> auths = new ArrayList<>();
+        authorizations.getAuthorizations().forEach(auth -> auths.add(new String(auth, StandardCharsets.ISO_8859_1)));
+        Collections.sort(auths);
+        final StringBuilder scope = new StringBuilder();
+        auths.forEach(auth -> scope.append(auth.length()).append(':').append(auth));
+        return scope.toString();
+    }
+
+    private Value serialize(Document doc) throws IOException {
+        final long start = System.nanoTime();
+        final Value value = documentWriter.toValue(doc);
+        metrics.add(ScanMetrics.Counter.SERIALIZE_NANOS, System.nanoTime() - start);
+        metrics.add(ScanMetrics.Counter.SERIALIZED_BYTES, value.getSize());
+        return value;
+    }
 
-        final String json = objectMapper.writeValueAsString(doc);
 
-        return json;
+    /**
+     * Orders a single document's checks so the fields most likely to be missing an fi
+     * key are checked first. An insertion sort keeps event order among equal rates and
+     * does not allocate.
+     */
+    private void orderFieldIndexChecks(){
+        for(int i = 0; i < fieldIndexCheckCount; i++){
+            final FieldIndexCheck check = fieldIndexChecks.get(i);
+            check.missRate = check.field.missRate();
+        }
+        for(int i = 1; i < fieldIndexCheckCount; i++){
+            final FieldIndexCheck check = fieldIndexChecks.get(i);
+            int j = i - 1;
+            while(j >= 0 && fieldIndexChecks.get(j).missRate < check.missRate){
+                fieldIndexChecks.set(j + 1, fieldIndexChecks.get(j));
+                j--;
+            }
+            fieldIndexChecks.set(j + 1, check);
+        }
     }
 
+    /**
+     * Sorts the batch's checks into fi key order so a single source only ever seeks forward.
+     * Event keys are sorted by field name, so each document's checks are nearly in order
+     * already and the insertion sort is close to linear for a single document.
+     */
+    private void sortFieldIndexChecks(){
+        for(int i = 1; i < fieldIndexCheckCount; i++){
+            final FieldIndexCheck check = fieldIndexChecks.get(i);
+            int j = i - 1;
+            while(j >= 0 && compareFieldIndexKeys(fieldIndexChecks.get(j), check) > 0){
+                fieldIndexChecks.set(j + 1, fieldIndexChecks.get(j));
+                j--;
+            }
+            fieldIndexChecks.set(j + 1, check);
+        }
+    }
 
-    private Range generateRange(final String fieldName, final String fieldValue, String dataType ){
-        Key topKey = new Key(shard, "fi\u0000" + fieldName, fieldValue + NULL + dataType + NULL);
+    private static int compareFieldIndexKeys(final FieldIndexCheck first, final FieldIndexCheck second){
+        final int result = KeyBytes.compare(first.field.columnFamily, second.field.columnFamily);
+        return result != 0 ? result : KeyBytes.compare(first.columnQualifier, second.columnQualifier);
+    }
 
-        Key endKey = new Key(shard, "fi\u0000" + fieldName, fieldValue + NULL + dataType + "\uffff");
+    /**
+     * @return fi column families and outcomes for the field, built once per field name
+     */
+    private FieldInfo getFieldInfo(final String fieldName){
+        FieldInfo info = fieldInfo.get(fieldName);
+        if (null == info){
+            info = new FieldInfo(fieldName);
+            fieldInfo.put(fieldName, info);
+        }
+        return info;
+    }
 
-        return new Range(topKey,true,endKey,false);
+    private boolean isSkippedField(final ByteSequence fieldNameAndValue, final int fieldNameEnd){
+        return isListedField(fieldsToSkipBytes, fieldNameAndValue, fieldNameEnd);
     }
 
-    private boolean notGeneratedField(final String inFieldName){
-        for(String fn : fieldsToSkip){
-            if ( inFieldName.equals( fn ) ){
-                return false;
+    private static boolean isListedField(final List<byte[]> fields, final ByteSequence fieldNameAndValue, final int fieldNameEnd){
+        for(byte[] fn : fields){
+            if ( KeyBytes.regionEquals(fieldNameAndValue, 0, fieldNameEnd, fn) ){
+                return true;
             }
         }
-        return true;
+        return false;
+    }
+
+    /**
+     * @param option comma separated field names, or null
+     * @return the field names as bytes, or null if the option was not given
+     */
+    static List<byte[]> fieldList(final String option){
+        if (null == option){
+            return null;
+        }
+        final List<byte[]> fields = new ArrayList<>();
+        Splitter.on(",").omitEmptyStrings().trimResults().split(option).forEach( fn -> fields.add(fn.getBytes(StandardCharsets.UTF_8)));
+        return fields;
     }
 
     /**
-     * Find the document specified by the sought source
-     * @return Document or null
+     * Records that the fi key for the field must exist. The fi column qualifier is
+     * value \x00 datatype \x00 uid, which is the event value followed by the event column family.
+     */
+    private void addFieldIndexCheck(final PendingDocument pending, final String fieldName, final ByteSequence fieldNameAndValue, final int fieldNameEnd, final ByteSequence dtUid){
+        if (fieldIndexCheckCount == fieldIndexChecks.size()){
+            fieldIndexChecks.add(new FieldIndexCheck());
+        }
+        final FieldIndexCheck check = fieldIndexChecks.get(fieldIndexCheckCount++);
+        check.document = pending;
+        check.fieldName = fieldName;
+        check.field = getFieldInfo(fieldName);
+        final int valueLength = fieldNameAndValue.length() - fieldNameEnd - 1;
+        final byte[] columnQualifier = new byte[valueLength + 1 + dtUid.length()];
+        KeyBytes.copy(fieldNameAndValue, fieldNameEnd + 1, fieldNameAndValue.length(), columnQualifier, 0);
+        columnQualifier[valueLength] = KeyBytes.NULL_BYTE;
+        KeyBytes.copy(dtUid, 0, dtUid.length(), columnQualifier, valueLength + 1);
+        check.columnQualifier = columnQualifier;
+        check.result = DocumentProfile.SKIPPED;
+        check.keysScanned = 0;
+        check.nanos = 0;
+    }
+
+    /**
+     * Find the document specified by the sought source, recording the fi keys it depends on
+     * @param pending holds the Document or null, and its top key
      * @throws IOException I/O Exception accessing accumulo data.
      */
-    private Document findTop() throws IOException {
+    private void findTop(final PendingDocument pending) throws IOException {
         Document doc = null;
 
         if (getSource().hasTop()){
-            doc = new Document();
-            topKey = getSource().getTopKey();
+            // documents are serialized before their batch is refilled, so each can be reused
+            doc = null != pending.doc ? pending.doc : new Document();
+            doc.clear();
+            final Key documentKey = new Key(getSource().getTopKey());
+            final ByteSequence row = documentKey.getRowData();
+            if (!KeyBytes.equals(row, shard)) {
+                shard = row.toArray();
+            }
+            // data type and UID
+            final ByteSequence dtUid = documentKey.getColumnFamilyData();
+            final String docId = KeyBytes.toString(dtUid, KeyBytes.indexOf(dtUid, KeyBytes.NULL_BYTE, 0) + 1, dtUid.length());
+            long documentSize = 0;
             while(getSource().hasTop() &&
-                    topKey.equals(getSource().getTopKey(), PartialKey.ROW_COLFAM)){
+                    documentKey.equals(getSource().getTopKey(), PartialKey.ROW_COLFAM)){
+                lastKey.set(getSource().getTopKey());
+                metrics.add(ScanMetrics.Counter.EVENT_KEYS_READ, 1);
 
-                // data type and UID
-                final String [] dtUid = getSource().getTopKey().getColumnFamily().toString().split("\u0000");
+                // field name and value, split on the first null since values may contain nulls
+                final ByteSequence fieldNameAndValue = lastKey.getColumnQualifierData();
+                final int fieldNameEnd = KeyBytes.indexOf(fieldNameAndValue, KeyBytes.NULL_BYTE, 0);
 
-                // field name and value
-                final String [] fieldNameAndValue = getSource().getTopKey().getColumnQualifier().toString().split("\u0000");
+                if (fieldNameEnd > 0 && isSkippedField(fieldNameAndValue, fieldNameEnd)) {
+                    metrics.add(ScanMetrics.Counter.FIELDS_SKIPPED, 1);
+                } else if (fieldNameEnd > 0) {
+                    doc.docId = docId;
 
-                if (!fieldsToSkip.contains(fieldNameAndValue[0])) {
-                    doc.documentFields.put( fieldNameAndValue[0], fieldNameAndValue[1] );
-                    // deep copy our source and seek to the fi\x00fieldname to merge.
-                    SortedKeyValueIterator<Key, Value> source = getSource().deepCopy(env);
+                    final boolean returned = null == returnFieldsBytes || isListedField(returnFieldsBytes, fieldNameAndValue, fieldNameEnd);
+                    final boolean verified = null == verifyFieldsBytes || isListedField(verifyFieldsBytes, fieldNameAndValue, fieldNameEnd);
+                    if (returned || verified) {
+                        final String fieldName = fieldNames.intern(fieldNameAndValue, 0, fieldNameEnd);
+                        if (returned) {
+                            // stop reading a document that could not be returned
+                            documentSize += fieldNameAndValue.length();
+                            if (documentSize > maxDocumentSize) {
+                                throw tooLarge(docId, documentSize);
+                            }
+                            doc.add( fieldName, KeyBytes.toString(fieldNameAndValue, fieldNameEnd + 1, fieldNameAndValue.length()) );
+                        }
+                        if (verified) {
+                            // record the fi\x00fieldname key to merge.
+                            addFieldIndexCheck(pending, fieldName, fieldNameAndValue, fieldNameEnd, dtUid);
+                        }
+                    }
+                }
+                getSource().next();
+            }
+            pending.key = new Key(lastKey);
+        }
+        pending.doc = doc;
+        // a document made up only of skipped fields has nothing to verify
+        pending.verified = null != doc && StringUtils.isNotBlank(doc.docId);
+    }
 
-                    doc.docId = dtUid[1];
+    private IOException tooLarge(final String docId, final long size) {
+        return new IOException("Document " + docId + " in shard " + new String(shard, StandardCharsets.UTF_8) + " has at least " + size +
+                " bytes, more than the " + MAX_DOCUMENT_SIZE + " of " + maxDocumentSize);
+    }
 
-                    source.seek(generateRange(fieldNameAndValue[0], fieldNameAndValue[1], dtUid[0]), Collections.EMPTY_LIST, false);
+    /**
+     * Document read from the event section, awaiting verification and serialization.
+     */
+    private static class PendingDocument {
+        Document doc;
+        Key key;
+        boolean verified;
+        long readNanos;
+    }
 
-                    deepCopiedSources.add(source);
-                }
-                getSource().next();
+    /**
+     * fi key a document depends on, along with the field whose pooled source verifies it.
+     */
+    private static class FieldIndexCheck {
+        PendingDocument document;
+        String fieldName;
+        FieldInfo field;
+        byte[] columnQualifier;
+        double missRate;
+        // outcome recorded for DocumentProfile
+        byte result;
+        int keysScanned;
+        long nanos;
+    }
+
+    /**
+     * fi\x00fieldname and the column family that follows it, bounding the field's fi section,
+     * along with how often the field's fi key has been missing.
+     */
+    private static class FieldInfo {
+        final byte[] columnFamily;
+        final byte[] followingColumnFamily;
+        long checks = 0;
+        long misses = 0;
+
+        FieldInfo(final String fieldName){
+            final byte[] name = fieldName.getBytes(StandardCharsets.UTF_8);
+            columnFamily = new byte[KeyBytes.FI_PREFIX.length + name.length];
+            System.arraycopy(KeyBytes.FI_PREFIX, 0, columnFamily, 0, KeyBytes.FI_PREFIX.length);
+            System.arraycopy(name, 0, columnFamily, KeyBytes.FI_PREFIX.length, name.length);
+            followingColumnFamily = Arrays.copyOf(columnFamily, columnFamily.length + 1);
+        }
+
+        void recordCheck(final boolean missing){
+            checks++;
+            if (missing){
+                misses++;
             }
         }
-        return doc;
+
+        /**
+         * @return smoothed rate at which the fi key was missing, 0.5 before any checks
+         */
+        double missRate(){
+            return (misses + 1d) / (checks + 2d);
+        }
     }
 
 }
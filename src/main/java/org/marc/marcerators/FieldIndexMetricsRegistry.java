@@ -0,0 +1,70 @@
+package org.marc.marcerators;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Purpose: Totals the ScanMetrics of every FieldIndexMergingIterator within a tablet server and
+ * exposes them over JMX, so the cost of slow scans can be broken down while they run.
+ *
+ * Assumptions: Iterators add their counts once per batch, so the LongAdders are not touched on
+ * the per key path. Should the MBean name already be taken, for instance by a copy of this class
+ * from another class loader, the registry still counts but is not visible over JMX.
+ */
+public final class FieldIndexMetricsRegistry implements FieldIndexMetricsRegistryMXBean {
+
+    public static final String OBJECT_NAME = "org.marc.marcerators:type=FieldIndexMergingIterator";
+
+    private static FieldIndexMetricsRegistry instance = null;
+
+    private final LongAdder[] counters = new LongAdder[ScanMetrics.Counter.values().length];
+
+    FieldIndexMetricsRegistry() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return the registry shared within this JVM, registering it with the platform MBean server
+     */
+    public static synchronized FieldIndexMetricsRegistry getInstance() {
+        if (null == instance) {
+            instance = new FieldIndexMetricsRegistry();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                // counted, but not visible over JMX
+            }
+        }
+        return instance;
+    }
+
+    void add(final ScanMetrics.Counter counter, final long amount) {
+        counters[counter.ordinal()].add(amount);
+    }
+
+    public long get(final ScanMetrics.Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (ScanMetrics.Counter counter : ScanMetrics.Counter.values()) {
+            result.put(counter.name(), get(counter));
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.marc.marcerators;
+
+import java.util.Map;
+
+/**
+ * Purpose: JMX view of the FieldIndexMetricsRegistry, registered in the tablet server as
+ * org.marc.marcerators:type=FieldIndexMergingIterator
+ */
+public interface FieldIndexMetricsRegistryMXBean {
+
+    /**
+     * @return every counter by name, totalled over all scans since start up or the last reset
+     */
+    Map<String, Long> getCounters();
+
+    void reset();
+}
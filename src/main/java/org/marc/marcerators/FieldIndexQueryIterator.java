@@ -0,0 +1,236 @@
+package org.marc.marcerators;
+
+import com.google.common.base.Splitter;
+import org.apache.accumulo.core.data.*;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Purpose: Finds the documents of each shard that satisfy a boolean query over field index
+ * terms, so that candidates are found on the tablet server rather than a term at a time
+ * by the client.
+ *
+ * Assumptions: QUERY holds the query, see QueryParser. Any range may be used, and each
+ * shard within it is searched in turn, using the fi section,
+ *
+ * Key(shard, fi \x00 fieldname, value \x00 datatype \x00 uid)
+ *
+ * to find matching documents in datatype \x00 uid order. Each match is read from the event
+ * section and returned as a document, FIELDS_TO_SKIP, RETURN_FIELDS and OUTPUT_FORMAT
+ * behaving as they do for FieldIndexMergingIterator. As there, the top key is the last
+ * event key of the document, so a scan resumed after it will begin with the following document.
+ *
+ * Range, prefix and regex terms read every fi key of the field within their bounds once per
+ * shard. At most EXPANSION_BUFFER of their uids are kept in memory, and the rest are sorted
+ * into runs under SPILL_DIRECTORY and merged back. Runs are unlinked once opened for merging,
+ * and whatever was gathered is discarded when the iterator is sought again or leaves its range.
+ */
+public class FieldIndexQueryIterator extends WrappingIterator {
+
+    // boolean query of fieldname == 'value' terms joined by &&, || and !
+    public static final String QUERY = "QUERY";
+    public static final String FIELDS_TO_SKIP = FieldIndexMergingIterator.FIELDS_TO_SKIP;
+    public static final String RETURN_FIELDS = FieldIndexMergingIterator.RETURN_FIELDS;
+    public static final String OUTPUT_FORMAT = FieldIndexMergingIterator.OUTPUT_FORMAT;
+    // uids of a range, prefix or regex term held in memory before spilling to disk, 100000 by default
+    public static final String EXPANSION_BUFFER = "EXPANSION_BUFFER";
+    // directory spilled uids are written to, java.io.tmpdir by default
+    public static final String SPILL_DIRECTORY = "SPILL_DIRECTORY";
+
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    private Key topKey = null;
+    private Value topValue = null;
+
+    private QueryNode query;
+
+    private final List<byte[]> fieldsToSkipBytes = new ArrayList<>();
+
+    // null when every field is returned
+    private List<byte[]> returnFieldsBytes = null;
+
+    private DocumentWriter documentWriter;
+
+    // field names shared by every document of the scan, and the document being read
+    private final FieldNames fieldNames = new FieldNames();
+    private final Document doc = new Document();
+
+    private Range seekRange;
+    private Collection<ByteSequence> seekColumnFamilies;
+    private boolean seekInclusive;
+
+    // shard being searched, null once the range is exhausted
+    private byte[] shard = null;
+
+    // last key read from the source
+    private final Key lastKey = new Key();
+
+    @Override
+    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
+        super.init(source, options, env);
+        if (!options.containsKey(QUERY)) {
+            throw new IllegalArgumentException(QUERY + " must be provided");
+        }
+        query = QueryParser.parse(options.get(QUERY));
+        query.init(source, env, options);
+        Splitter.on(",").split(options.getOrDefault(FIELDS_TO_SKIP, "LOAD_DATE,RAW_FILE,TERM_COUNT"))
+                .forEach(fn -> fieldsToSkipBytes.add(fn.getBytes(StandardCharsets.UTF_8)));
+        returnFieldsBytes = FieldIndexMergingIterator.fieldList(options.get(RETURN_FIELDS));
+        documentWriter = DocumentWriter.forFormat(options.getOrDefault(OUTPUT_FORMAT, "json"));
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        seekRange = range;
+        seekColumnFamilies = columnFamilies;
+        seekInclusive = inclusive;
+        topValue = null;
+        shard = null;
+        // nothing gathered for an earlier range is needed again
+        query.release();
+
+        super.seek(range, columnFamilies, inclusive);
+        if (getSource().hasTop()) {
+            shard = getSource().getTopKey().getRowData().toArray();
+            query.seek(shard, startingDocument(range.getStartKey()));
+        }
+        findNextDocument();
+    }
+
+    @Override
+    public void next() throws IOException {
+        topValue = null;
+        findNextDocument();
+    }
+
+    @Override
+    public boolean hasTop() {
+        return topValue != null;
+    }
+
+    @Override
+    public Key getTopKey() {
+        return topValue != null ? topKey : null;
+    }
+
+    @Override
+    public Value getTopValue() {
+        return topValue;
+    }
+
+    /**
+     * The first document of the first shard that the range covers in full. A range that
+     * starts part way through a document, as a resumed scan does, begins with the next one.
+     * @param startKey start key of the sought range
+     * @return datatype \x00 uid to begin the search from
+     */
+    private byte[] startingDocument(final Key startKey) {
+        if (null == startKey || !KeyBytes.equals(startKey.getRowData(), shard)) {
+            return EMPTY_BYTES;
+        }
+        final ByteSequence columnFamily = startKey.getColumnFamilyData();
+        if (KeyBytes.indexOf(columnFamily, KeyBytes.NULL_BYTE, 0) < 0 || KeyBytes.startsWith(columnFamily, KeyBytes.FI_PREFIX)) {
+            return EMPTY_BYTES;
+        }
+        final byte[] documentId = columnFamily.toArray();
+        return startKey.getColumnQualifierData().length() > 0 ? QueryNode.following(documentId) : documentId;
+    }
+
+    /**
+     * Reads matching documents until one is found in the event section or the range is exhausted.
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private void findNextDocument() throws IOException {
+        while (topValue == null && null != shard) {
+            final byte[] documentId = query.current();
+            if (null == documentId) {
+                nextShard();
+                continue;
+            }
+            final Key documentKey = new Key(shard, documentId, EMPTY_BYTES, EMPTY_BYTES, Long.MAX_VALUE);
+            if (seekRange.afterEndKey(documentKey)) {
+                shard = null;
+                query.release();
+                return;
+            }
+            readDocument(documentKey);
+            query.next();
+        }
+    }
+
+    /**
+     * Moves on to the shard following the current one.
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private void nextShard() throws IOException {
+        final Key following = new Key(shard, EMPTY_BYTES, EMPTY_BYTES, EMPTY_BYTES, Long.MAX_VALUE).followingKey(PartialKey.ROW);
+        shard = null;
+        if (reseek(following) && getSource().hasTop()) {
+            shard = getSource().getTopKey().getRowData().toArray();
+            query.seek(shard, EMPTY_BYTES);
+        } else {
+            query.release();
+        }
+    }
+
+    /**
+     * Reads the document's event keys into the top value, if the document has any.
+     * @param documentKey Key(shard, datatype \x00 uid)
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private void readDocument(final Key documentKey) throws IOException {
+        if (!reseek(documentKey) || !getSource().hasTop() || !documentKey.equals(getSource().getTopKey(), PartialKey.ROW_COLFAM)) {
+            return;
+        }
+        final ByteSequence dtUid = documentKey.getColumnFamilyData();
+        doc.clear();
+        doc.docId = KeyBytes.toString(dtUid, KeyBytes.indexOf(dtUid, KeyBytes.NULL_BYTE, 0) + 1, dtUid.length());
+        while (getSource().hasTop() && documentKey.equals(getSource().getTopKey(), PartialKey.ROW_COLFAM)) {
+            lastKey.set(getSource().getTopKey());
+            // field name and value, split on the first null since values may contain nulls
+            final ByteSequence fieldNameAndValue = lastKey.getColumnQualifierData();
+            final int fieldNameEnd = KeyBytes.indexOf(fieldNameAndValue, KeyBytes.NULL_BYTE, 0);
+            if (fieldNameEnd > 0 && !isSkippedField(fieldNameAndValue, fieldNameEnd) &&
+                    (null == returnFieldsBytes || isListed(returnFieldsBytes, fieldNameAndValue, fieldNameEnd))) {
+                doc.add(fieldNames.intern(fieldNameAndValue, 0, fieldNameEnd),
+                        KeyBytes.toString(fieldNameAndValue, fieldNameEnd + 1, fieldNameAndValue.length()));
+            }
+            getSource().next();
+        }
+        topKey = new Key(lastKey);
+        topValue = documentWriter.toValue(doc);
+    }
+
+    private boolean isSkippedField(final ByteSequence fieldNameAndValue, final int fieldNameEnd) {
+        return isListed(fieldsToSkipBytes, fieldNameAndValue, fieldNameEnd);
+    }
+
+    private static boolean isListed(final List<byte[]> fields, final ByteSequence fieldNameAndValue, final int fieldNameEnd) {
+        for (byte[] fn : fields) {
+            if (KeyBytes.regionEquals(fieldNameAndValue, 0, fieldNameEnd, fn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Seeks the source forward to the given key, staying within the range we were sought to.
+     * @param start key to seek to
+     * @return false if the key is beyond the sought range
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    private boolean reseek(final Key start) throws IOException {
+        final Range remaining = seekRange.clip(new Range(start, true, null, false), true);
+        if (null == remaining) {
+            return false;
+        }
+        getSource().seek(remaining, seekColumnFamilies, seekInclusive);
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+
+import java.io.IOException;
+
+/**
+ * Purpose: Keeps deep copies of the iterator source keyed by field name so that a copy
+ * is re-sought for every document rather than created for every field of every document.
+ *
+ * Assumptions: Borrowed sources are always re-sought by the caller before use. Once the
+ * cap on live copies is reached the idle copies of other fields are evicted to make room.
+ */
+public class FieldIndexSourcePool {
+
+    private final GenericKeyedObjectPool<String, SortedKeyValueIterator<Key, Value>> pool;
+
+    private long createdCopies = 0;
+
+    public FieldIndexSourcePool(final SortedKeyValueIterator<Key, Value> source, final IteratorEnvironment env, final int maxDeepCopies) {
+        if (maxDeepCopies < 1) {
+            // a limit of zero fails every borrow and a negative one removes the limit
+            throw new IllegalArgumentException("At least one deep copy must be allowed");
+        }
+        final GenericKeyedObjectPoolConfig<SortedKeyValueIterator<Key, Value>> config = new GenericKeyedObjectPoolConfig<>();
+        config.setMaxTotal(maxDeepCopies);
+        config.setMaxTotalPerKey(maxDeepCopies);
+        config.setMaxIdlePerKey(maxDeepCopies);
+        // never wait on a copy, sources are borrowed one at a time
+        config.setBlockWhenExhausted(false);
+        // iterators are short lived, so avoid registering an MBean per instance
+        config.setJmxEnabled(false);
+        pool = new GenericKeyedObjectPool<>(new BaseKeyedPooledObjectFactory<String, SortedKeyValueIterator<Key, Value>>() {
+            @Override
+            public SortedKeyValueIterator<Key, Value> create(final String fieldName) {
+                createdCopies++;
+                return source.deepCopy(env);
+            }
+
+            @Override
+            public PooledObject<SortedKeyValueIterator<Key, Value>> wrap(final SortedKeyValueIterator<Key, Value> copy) {
+                return new DefaultPooledObject<>(copy);
+            }
+        }, config);
+    }
+
+    /**
+     * Borrow a deep copy for the field.
+     * @param fieldName field name
+     * @return deep copy of the source, positioned wherever it was last sought
+     * @throws IOException if no copy could be created
+     */
+    public SortedKeyValueIterator<Key, Value> borrow(final String fieldName) throws IOException {
+        try {
+            return pool.borrowObject(fieldName);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to obtain a source for " + fieldName, e);
+        }
+    }
+
+    /**
+     * Return a copy obtained through borrow.
+     * @param fieldName field name it was borrowed for
+     * @param copy deep copy
+     */
+    public void giveBack(final String fieldName, final SortedKeyValueIterator<Key, Value> copy) {
+        pool.returnObject(fieldName, copy);
+    }
+
+    /**
+     * @return number of deep copies currently alive
+     */
+    public int getLiveCopies() {
+        return pool.getNumActive() + pool.getNumIdle();
+    }
+
+    /**
+     * @return number of deep copies created, including those since evicted
+     */
+    public long getCreatedCopies() {
+        return createdCopies;
+    }
+}
@@ -0,0 +1,53 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.ByteSequence;
+
+/**
+ * Purpose: Interns field names for the life of a scan, so that every document shares one
+ * String per field name and names are decoded from key bytes only once.
+ *
+ * Assumptions: Lookups hash the bytes in place and allocate nothing once a name is known.
+ * At most MAX_NAMES names are kept; past that, names are decoded each time they are seen.
+ * Not thread safe; each iterator holds its own.
+ */
+final class FieldNames {
+
+    static final int MAX_NAMES = 1024;
+
+    // open addressing table, twice the size of the names it may hold
+    private final byte[][] keys = new byte[MAX_NAMES * 2][];
+    private final String[] names = new String[MAX_NAMES * 2];
+    private int count = 0;
+
+    /**
+     * @return the field name held in sequence[start, end)
+     */
+    String intern(final ByteSequence sequence, final int start, final int end) {
+        final int mask = keys.length - 1;
+        int slot = hash(sequence, start, end) & mask;
+        while (null != keys[slot]) {
+            if (KeyBytes.regionEquals(sequence, start, end, keys[slot])) {
+                return names[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        final String name = KeyBytes.toString(sequence, start, end);
+        if (count < MAX_NAMES) {
+            final byte[] key = new byte[end - start];
+            KeyBytes.copy(sequence, start, end, key, 0);
+            keys[slot] = key;
+            names[slot] = name;
+            count++;
+        }
+        return name;
+    }
+
+    private static int hash(final ByteSequence sequence, final int start, final int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + sequence.byteAt(i);
+        }
+        // spread the low bits, which select the slot
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,325 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.*;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Purpose: Resolves global index entries into the documents that FieldIndexMergingIterator
+ * verifies, so that the term to document step happens on the tablet server.
+ *
+ * Assumptions: Global index keys are laid out as
+ *
+ * Key(term, fieldname, shard \x00 datatype) with a Uid.List value, read with UidListReader
+ *
+ * Every uid that is neither removed nor quarantined is emitted, in sorted order, as
+ *
+ * Key(term, fieldname, shard \x00 datatype \x00 uid)
+ *
+ * When IGNORE is set the uids were not kept, and the entry's own key is emitted as a
+ * candidate covering the whole datatype within the shard. Entries for the same term, field,
+ * shard and datatype under different visibilities are merged, taking the first one's
+ * visibility and timestamp. toDocumentRange converts an emitted key into the range to
+ * seek FieldIndexMergingIterator with.
+ *
+ * An entry with a single version whose uids are sorted and neither removed nor quarantined,
+ * as UidListCombiner leaves it, is streamed a uid at a time from a copy of its value. Only
+ * entries with several versions, or with removals, have their uids gathered and merged.
+ */
+public class GlobalIndexUidIterator extends WrappingIterator {
+
+    private static final byte NULL_BYTE = 0x00;
+
+    private static final Value EMPTY_VALUE = new Value(new byte[0]);
+
+    private Range seekRange;
+
+    // emitted key a resumed scan must continue after, when the seek began within an entry
+    private Key resumeKey = null;
+    private boolean resumeInclusive = false;
+
+    private final UidListReader reader = new UidListReader();
+
+    // value of the entry being read, reused across entries
+    private byte[] entryValue = new byte[0];
+
+    // parts of the entry's key shared by the keys of its uids
+    private byte[] entryRow;
+    private byte[] entryColumnFamily;
+    private ByteSequence entryShardDataType;
+    private byte[] entryVisibility;
+    private long entryTimestamp;
+
+    // entry whose uids are being streamed from the reader, null when its keys are pending
+    private Key streamedEntry = null;
+    private Key streamedKey = null;
+
+    private final List<Key> pending = new ArrayList<>();
+    private int pendingPosition = 0;
+
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        final GlobalIndexUidIterator copy = new GlobalIndexUidIterator();
+        copy.setSource(getSource().deepCopy(env));
+        return copy;
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        seekRange = range;
+        pending.clear();
+        pendingPosition = 0;
+        streamedEntry = null;
+        streamedKey = null;
+        resumeKey = null;
+
+        Range sourceRange = range;
+        final Key startKey = range.getStartKey();
+        if (null != startKey) {
+            final ByteSequence columnQualifier = startKey.getColumnQualifierData();
+            final int firstNull = KeyBytes.indexOf(columnQualifier, NULL_BYTE, 0);
+            final int uidNull = firstNull < 0 ? -1 : KeyBytes.indexOf(columnQualifier, NULL_BYTE, firstNull + 1);
+            if (firstNull >= 0) {
+                // the range begins at an emitted key, either a uid or an IGNORE entry's own key, which may be
+                // any version of the entry. Re-read every version of the entry and skip what precedes the start
+                resumeKey = startKey;
+                resumeInclusive = range.isStartKeyInclusive();
+                final int entryEnd = uidNull >= 0 ? uidNull : columnQualifier.length();
+                final Key entryKey = new Key(startKey.getRowData().toArray(), startKey.getColumnFamilyData().toArray(),
+                        columnQualifier.subSequence(0, entryEnd).toArray(), new byte[0], Long.MAX_VALUE);
+                sourceRange = new Range(entryKey, true, range.getEndKey(), range.isEndKeyInclusive());
+            }
+        }
+        super.seek(sourceRange, columnFamilies, inclusive);
+        findTop();
+    }
+
+    @Override
+    public void next() throws IOException {
+        if (null != streamedEntry) {
+            nextStreamed();
+        } else {
+            pendingPosition++;
+        }
+        findTop();
+    }
+
+    @Override
+    public boolean hasTop() {
+        return null != streamedEntry || pendingPosition < pending.size();
+    }
+
+    @Override
+    public Key getTopKey() {
+        if (null != streamedEntry) {
+            return streamedKey;
+        }
+        return hasTop() ? pending.get(pendingPosition) : null;
+    }
+
+    @Override
+    public Value getTopValue() {
+        return hasTop() ? EMPTY_VALUE : null;
+    }
+
+    /**
+     * Decodes entries until one yields at least one key within the range.
+     * @throws IOException if an entry cannot be decoded
+     */
+    private void findTop() throws IOException {
+        while (null == streamedEntry && pendingPosition >= pending.size() && getSource().hasTop()) {
+            pending.clear();
+            pendingPosition = 0;
+            readEntry();
+        }
+    }
+
+    /**
+     * Reads the next entry, streaming its uids when it has a single version that needs no
+     * merging, otherwise merging every version and queueing its keys.
+     * @throws IOException if an entry cannot be decoded
+     */
+    private void readEntry() throws IOException {
+        final Key entryKey = new Key(getSource().getTopKey());
+        // the uids are read in place, so copy the value in case the source reuses it once advanced
+        final Value value = getSource().getTopValue();
+        if (entryValue.length < value.getSize()) {
+            entryValue = new byte[value.getSize()];
+        }
+        System.arraycopy(value.get(), 0, entryValue, 0, value.getSize());
+        final int entryLength = value.getSize();
+        getSource().next();
+        entryRow = entryKey.getRowData().toArray();
+        entryColumnFamily = entryKey.getColumnFamilyData().toArray();
+        entryShardDataType = entryKey.getColumnQualifierData();
+        entryVisibility = entryKey.getColumnVisibilityData().toArray();
+        entryTimestamp = entryKey.getTimestamp();
+
+        reader.reset(entryValue, 0, entryLength);
+        if (!getSource().hasTop() || !entryKey.equals(getSource().getTopKey(), PartialKey.ROW_COLFAM_COLQUAL)) {
+            if (reader.isIgnore()) {
+                queue(entryKey);
+                return;
+            }
+            final boolean streamed = isSortedWithoutRemovals();
+            reader.reset(entryValue, 0, entryLength);
+            if (streamed) {
+                streamedEntry = entryKey;
+                nextStreamed();
+                return;
+            }
+        }
+        mergeEntry(entryKey);
+    }
+
+    /**
+     * @return true if every entry of the reader's message is a uid, each sorting after the last
+     */
+    private boolean isSortedWithoutRemovals() throws IOException {
+        int previousOffset = -1;
+        int previousLength = 0;
+        for (int field = reader.nextEntry(); field >= 0; field = reader.nextEntry()) {
+            if (field != UidListReader.UID) {
+                return false;
+            }
+            if (previousOffset >= 0 && KeyBytes.compare(entryValue, previousOffset, previousLength,
+                    entryValue, reader.entryOffset(), reader.entryLength()) >= 0) {
+                return false;
+            }
+            previousOffset = reader.entryOffset();
+            previousLength = reader.entryLength();
+        }
+        return true;
+    }
+
+    /**
+     * Advance to the next uid of the streamed entry that is within the range, ending the
+     * stream once none remain.
+     * @throws IOException if the entry cannot be decoded
+     */
+    private void nextStreamed() throws IOException {
+        while (reader.nextEntry() >= 0) {
+            final Key key = uidKey(reader.entryBuffer(), reader.entryOffset(), reader.entryLength());
+            if (seekRange.afterEndKey(key)) {
+                break;
+            }
+            if (!isResumed(key)) {
+                streamedKey = key;
+                return;
+            }
+        }
+        streamedEntry = null;
+        streamedKey = null;
+    }
+
+    /**
+     * Merges every version of the entry, the first of which the reader holds, and queues its keys.
+     * @throws IOException if an entry cannot be decoded
+     */
+    private void mergeEntry(final Key entryKey) throws IOException {
+        boolean ignore = false;
+        final TreeSet<ByteSequence> uids = new TreeSet<>();
+        final Set<ByteSequence> removed = new HashSet<>();
+        while (true) {
+            ignore |= reader.isIgnore();
+            for (int field = reader.nextEntry(); field >= 0; field = reader.nextEntry()) {
+                if (field == UidListReader.UID) {
+                    uids.add(reader.entry());
+                } else {
+                    removed.add(reader.entry());
+                }
+            }
+            if (!getSource().hasTop() || !entryKey.equals(getSource().getTopKey(), PartialKey.ROW_COLFAM_COLQUAL)) {
+                break;
+            }
+            // entryValue holds the first version, whose uids are kept as slices of it
+            final byte[] value = getSource().getTopValue().get().clone();
+            reader.reset(value, 0, value.length);
+            getSource().next();
+        }
+
+        if (ignore) {
+            queue(entryKey);
+            return;
+        }
+        uids.removeAll(removed);
+        for (ByteSequence uid : uids) {
+            if (!queue(uidKey(uid.getBackingArray(), uid.offset(), uid.length()))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Key(term, fieldname, shard \x00 datatype \x00 uid) for a uid of the current entry
+     */
+    private Key uidKey(final byte[] uid, final int offset, final int length) {
+        final byte[] columnQualifier = new byte[entryShardDataType.length() + 1 + length];
+        KeyBytes.copy(entryShardDataType, 0, entryShardDataType.length(), columnQualifier, 0);
+        columnQualifier[entryShardDataType.length()] = NULL_BYTE;
+        System.arraycopy(uid, offset, columnQualifier, entryShardDataType.length() + 1, length);
+        return new Key(entryRow, entryColumnFamily, columnQualifier, entryVisibility, entryTimestamp, false, false);
+    }
+
+    /**
+     * Queue a key unless a resumed scan has already returned it.
+     * @return false once the key is beyond the range, so later keys can be ignored
+     */
+    private boolean queue(final Key key) {
+        if (seekRange.afterEndKey(key)) {
+            return false;
+        }
+        if (!isResumed(key)) {
+            pending.add(key);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a resumed scan has already returned the key
+     */
+    private boolean isResumed(final Key key) {
+        if (null != resumeKey) {
+            final int result = key.compareTo(resumeKey, PartialKey.ROW_COLFAM_COLQUAL);
+            return result < 0 || (result == 0 && !resumeInclusive);
+        }
+        return false;
+    }
+
+    /**
+     * Builds the range for FieldIndexMergingIterator from a key emitted by this iterator.
+     * A uid key becomes a document range, an IGNORE key becomes a range over the
+     * datatype within the shard, to be used with DOCUMENT_SCAN.
+     * @param key emitted key
+     * @return range to seek FieldIndexMergingIterator with
+     */
+    public static Range toDocumentRange(final Key key) {
+        final String shardDataTypeUid = key.getColumnQualifier().toString();
+        final int firstNull = shardDataTypeUid.indexOf(FieldIndexMergingIterator.NULL);
+        if (firstNull < 0) {
+            throw new IllegalArgumentException("Not a global index key " + key);
+        }
+        final String shard = shardDataTypeUid.substring(0, firstNull);
+        final String dataTypeUid = shardDataTypeUid.substring(firstNull + 1);
+        if (dataTypeUid.contains(FieldIndexMergingIterator.NULL)) {
+            final Key documentKey = new Key(shard, dataTypeUid);
+            return new Range(documentKey, true, documentKey.followingKey(PartialKey.ROW_COLFAM), false);
+        }
+        return new Range(new Key(shard, dataTypeUid + FieldIndexMergingIterator.NULL), true,
+                new Key(shard, dataTypeUid + "\u0001"), false);
+    }
+
+    /**
+     * @param key emitted key
+     * @return true if the key stands for every document of a datatype within a shard
+     */
+    public static boolean isShardCandidate(final Key key) {
+        final ByteSequence columnQualifier = key.getColumnQualifierData();
+        final int firstNull = KeyBytes.indexOf(columnQualifier, NULL_BYTE, 0);
+        return firstNull >= 0 && KeyBytes.indexOf(columnQualifier, NULL_BYTE, firstNull + 1) < 0;
+    }
+}
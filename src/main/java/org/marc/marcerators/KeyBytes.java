@@ -0,0 +1,138 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.ByteSequence;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Purpose: Parses shard table keys in place on their backing bytes, avoiding the String
+ * and array copies of Text.toString() and split on the hot path.
+ */
+final class KeyBytes {
+
+    static final byte NULL_BYTE = 0x00;
+
+    static final byte[] FI_PREFIX = {'f', 'i', NULL_BYTE};
+
+    private KeyBytes() {}
+
+    /**
+     * @param sequence bytes to search
+     * @param b byte to find
+     * @param from index to begin searching from
+     * @return index of the first occurrence of b at or after from, or -1
+     */
+    static int indexOf(final ByteSequence sequence, final byte b, final int from) {
+        for (int i = from; i < sequence.length(); i++) {
+            if (sequence.byteAt(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param sequence bytes to search
+     * @param b byte to find
+     * @return index of the last occurrence of b, or -1
+     */
+    static int lastIndexOf(final ByteSequence sequence, final byte b) {
+        for (int i = sequence.length() - 1; i >= 0; i--) {
+            if (sequence.byteAt(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if sequence begins with prefix
+     */
+    static boolean startsWith(final ByteSequence sequence, final byte[] prefix) {
+        return sequence.length() >= prefix.length && regionEquals(sequence, 0, prefix.length, prefix);
+    }
+
+    /**
+     * @return true if the bytes of sequence between start ( inclusive ) and end ( exclusive ) equal other
+     */
+    static boolean regionEquals(final ByteSequence sequence, final int start, final int end, final byte[] other) {
+        if (end - start != other.length) {
+            return false;
+        }
+        if (sequence.isBackedByArray()) {
+            final byte[] data = sequence.getBackingArray();
+            final int offset = sequence.offset() + start;
+            for (int i = 0; i < other.length; i++) {
+                if (data[offset + i] != other[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (int i = 0; i < other.length; i++) {
+            if (sequence.byteAt(start + i) != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if sequence holds exactly the bytes of other
+     */
+    static boolean equals(final ByteSequence sequence, final byte[] other) {
+        return regionEquals(sequence, 0, sequence.length(), other);
+    }
+
+    /**
+     * Compares two arrays as unsigned bytes, the order keys sort in.
+     */
+    static int compare(final byte[] first, final byte[] second) {
+        final int length = Math.min(first.length, second.length);
+        for (int i = 0; i < length; i++) {
+            final int result = (first[i] & 0xff) - (second[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return first.length - second.length;
+    }
+
+    /**
+     * Compares regions of two arrays as unsigned bytes.
+     */
+    static int compare(final byte[] first, final int firstOffset, final int firstLength,
+                       final byte[] second, final int secondOffset, final int secondLength) {
+        final int length = Math.min(firstLength, secondLength);
+        for (int i = 0; i < length; i++) {
+            final int result = (first[firstOffset + i] & 0xff) - (second[secondOffset + i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return firstLength - secondLength;
+    }
+
+    /**
+     * Decodes a region of the sequence without an intermediate copy.
+     */
+    static String toString(final ByteSequence sequence, final int start, final int end) {
+        if (sequence.isBackedByArray()) {
+            return new String(sequence.getBackingArray(), sequence.offset() + start, end - start, StandardCharsets.UTF_8);
+        }
+        return new String(sequence.subSequence(start, end).toArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies a region of the sequence into dest.
+     */
+    static void copy(final ByteSequence sequence, final int start, final int end, final byte[] dest, final int destOffset) {
+        if (sequence.isBackedByArray()) {
+            System.arraycopy(sequence.getBackingArray(), sequence.offset() + start, dest, destOffset, end - start);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[destOffset + i - start] = sequence.byteAt(i);
+            }
+        }
+    }
+}
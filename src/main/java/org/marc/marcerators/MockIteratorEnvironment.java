@@ -1,11 +1,27 @@
 package org.marc.marcerators;
 
 import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.security.Authorizations;
 
 public class MockIteratorEnvironment implements IteratorEnvironment {
 
+    private final Authorizations authorizations;
+
+    public MockIteratorEnvironment() {
+        this(Authorizations.EMPTY);
+    }
+
+    public MockIteratorEnvironment(final Authorizations authorizations) {
+        this.authorizations = authorizations;
+    }
+
     @Override
     public boolean isSamplingEnabled() {
         return false;
     }
+
+    @Override
+    public Authorizations getAuthorizations() {
+        return authorizations;
+    }
 }
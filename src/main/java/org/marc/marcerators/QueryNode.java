@@ -0,0 +1,665 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Purpose: A node of a boolean query over field index terms, producing the sorted
+ * datatype \x00 uid of every matching document within a shard.
+ *
+ * Assumptions: Terms read the fi section,
+ *
+ * Key(shard, fi \x00 fieldname, value \x00 datatype \x00 uid)
+ *
+ * through their own deep copy of the source. Conjunctions leapfrog their terms, seeking
+ * each forward to the largest uid any of them is on, and disjunctions merge theirs. A
+ * negation, or a disjunction holding one, matches documents that none of its terms find, so
+ * it is only evaluated as a filter on the candidates of a conjunction with at least one bounded
+ * child, since otherwise every document of the shard would have to be read.
+ */
+abstract class QueryNode {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Position on the first matching document at or after the target.
+     * @param shard shard row
+     * @param target datatype \x00 uid to start from, empty for the start of the shard
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    abstract void seek(byte[] shard, byte[] target) throws IOException;
+
+    /**
+     * Advance to the next matching document.
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    abstract void next() throws IOException;
+
+    /**
+     * @return datatype \x00 uid of the current document, or null once the shard is exhausted
+     */
+    abstract byte[] current();
+
+    /**
+     * @return true if the node only matches documents found through its terms
+     */
+    abstract boolean isBounded();
+
+    /**
+     * Check a single candidate, as a filter within an And. Candidates of a shard are checked
+     * in increasing order.
+     * @param shard shard row
+     * @param documentId datatype \x00 uid of the candidate
+     * @return true if the node matches the document
+     * @throws IOException I/O Exception accessing accumulo data.
+     */
+    boolean matches(final byte[] shard, final byte[] documentId) throws IOException {
+        seek(shard, documentId);
+        return null != current() && KeyBytes.compare(current(), documentId) == 0;
+    }
+
+    /**
+     * Obtain the deep copies of the source that terms read from.
+     * @param options iterator options
+     */
+    abstract void init(SortedKeyValueIterator<Key, Value> source, IteratorEnvironment env, Map<String, String> options);
+
+    /**
+     * Discard whatever was gathered for the current shard, deleting any spilled files. The
+     * node is sought again before it is next read.
+     */
+    void release() {
+    }
+
+    /**
+     * @return the smallest datatype \x00 uid that sorts after the given one
+     */
+    static byte[] following(final byte[] documentId) {
+        return Arrays.copyOf(documentId, documentId.length + 1);
+    }
+
+    /**
+     * fieldname == 'value'
+     */
+    static class Term extends QueryNode {
+        final String fieldName;
+        final String value;
+
+        private final byte[] columnFamily;
+        private final byte[] valuePrefix;
+        private final byte[] valueEnd;
+
+        private SortedKeyValueIterator<Key, Value> source;
+        private byte[] current;
+
+        // every seek goes through this range, whose keys are updated in place
+        private final ReusableKey startKey = new ReusableKey();
+        private final ReusableKey endKey = new ReusableKey();
+        private final Range range = new Range(startKey, true, endKey, false);
+
+        Term(final String fieldName, final String value) {
+            this.fieldName = fieldName;
+            this.value = value;
+            columnFamily = ("fi" + FieldIndexMergingIterator.NULL + fieldName).getBytes(StandardCharsets.UTF_8);
+            final byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            valuePrefix = Arrays.copyOf(valueBytes, valueBytes.length + 1);
+            valueEnd = Arrays.copyOf(valueBytes, valueBytes.length + 1);
+            valueEnd[valueBytes.length] = 0x01;
+        }
+
+        @Override
+        void seek(final byte[] shard, final byte[] target) throws IOException {
+            final byte[] start = Arrays.copyOf(valuePrefix, valuePrefix.length + target.length);
+            System.arraycopy(target, 0, start, valuePrefix.length, target.length);
+            startKey.set(shard, columnFamily, start);
+            endKey.set(shard, columnFamily, valueEnd);
+            source.seek(range, Collections.EMPTY_LIST, false);
+            current = null;
+            readCurrent();
+        }
+
+        @Override
+        void next() throws IOException {
+            // the same fi key may exist under several visibilities
+            while (source.hasTop() && null != current && KeyBytes.regionEquals(source.getTopKey().getColumnQualifierData(), valuePrefix.length,
+                    source.getTopKey().getColumnQualifierData().length(), current)) {
+                source.next();
+            }
+            readCurrent();
+        }
+
+        private void readCurrent() {
+            if (source.hasTop()) {
+                final ByteSequence columnQualifier = source.getTopKey().getColumnQualifierData();
+                current = new byte[columnQualifier.length() - valuePrefix.length];
+                KeyBytes.copy(columnQualifier, valuePrefix.length, columnQualifier.length(), current, 0);
+            } else {
+                current = null;
+            }
+        }
+
+        @Override
+        byte[] current() {
+            return current;
+        }
+
+        @Override
+        boolean isBounded() {
+            return true;
+        }
+
+        @Override
+        void init(final SortedKeyValueIterator<Key, Value> source, final IteratorEnvironment env, final Map<String, String> options) {
+            this.source = source.deepCopy(env);
+        }
+
+        @Override
+        public String toString() {
+            return fieldName + " == '" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+        }
+    }
+
+    /**
+     * Every value of a field within bounds, with a prefix, or matching a regular expression.
+     * The field's fi keys between the bounds are read once per shard and their uids gathered
+     * into a SortedUidBuffer, which spills to local files past EXPANSION_BUFFER uids.
+     */
+    static class Expansion extends QueryNode {
+        final String fieldName;
+        // null when unbounded
+        String lower;
+        boolean lowerInclusive;
+        String upper;
+        boolean upperInclusive;
+        String prefix;
+        Pattern pattern;
+
+        private byte[] columnFamily;
+        private byte[] followingColumnFamily;
+        private byte[] prefixBytes;
+        private byte[] lowerBytes;
+        private byte[] upperBytes;
+
+        private SortedKeyValueIterator<Key, Value> source;
+        private SortedUidBuffer uids;
+
+        // shard and target the buffer was filled for
+        private byte[] expandedShard = null;
+        private byte[] lastTarget = null;
+
+        private final ReusableKey startKey = new ReusableKey();
+        private final ReusableKey endKey = new ReusableKey();
+        private final Range range = new Range(startKey, true, endKey, false);
+
+        Expansion(final String fieldName) {
+            this.fieldName = fieldName;
+        }
+
+        static Expansion range(final String fieldName, final String lower, final boolean lowerInclusive, final String upper, final boolean upperInclusive) {
+            final Expansion expansion = new Expansion(fieldName);
+            expansion.lower = lower;
+            expansion.lowerInclusive = lowerInclusive;
+            expansion.upper = upper;
+            expansion.upperInclusive = upperInclusive;
+            return expansion;
+        }
+
+        static Expansion prefix(final String fieldName, final String prefix) {
+            final Expansion expansion = new Expansion(fieldName);
+            expansion.prefix = prefix;
+            return expansion;
+        }
+
+        static Expansion regex(final String fieldName, final String regex) {
+            final Expansion expansion = new Expansion(fieldName);
+            expansion.pattern = Pattern.compile(regex);
+            expansion.prefix = literalPrefix(regex);
+            return expansion;
+        }
+
+        /**
+         * @return true if this is a range, which can be narrowed by another on the same field
+         */
+        boolean isRange() {
+            return null == prefix && null == pattern;
+        }
+
+        /**
+         * Narrow this range to also satisfy another on the same field.
+         */
+        void intersect(final Expansion other) {
+            if (null != other.lower && (null == lower || other.lower.compareTo(lower) > 0 ||
+                    (other.lower.equals(lower) && !other.lowerInclusive))) {
+                lower = other.lower;
+                lowerInclusive = other.lowerInclusive;
+            }
+            if (null != other.upper && (null == upper || other.upper.compareTo(upper) < 0 ||
+                    (other.upper.equals(upper) && !other.upperInclusive))) {
+                upper = other.upper;
+                upperInclusive = other.upperInclusive;
+            }
+        }
+
+        /**
+         * The characters a regular expression must begin with, used to bound the fi keys read.
+         */
+        static String literalPrefix(final String regex) {
+            if (regex.indexOf('|') >= 0) {
+                return "";
+            }
+            int end = 0;
+            while (end < regex.length() && ".[]{}()*+?^$|\\".indexOf(regex.charAt(end)) < 0) {
+                end++;
+            }
+            // a quantifier makes the last literal character optional
+            if (end > 0 && end < regex.length() && "*?{".indexOf(regex.charAt(end)) >= 0) {
+                end--;
+            }
+            return regex.substring(0, end);
+        }
+
+        @Override
+        void seek(final byte[] shard, final byte[] target) throws IOException {
+            if (null == expandedShard || !Arrays.equals(shard, expandedShard) || KeyBytes.compare(target, lastTarget) < 0) {
+                expand(shard);
+            }
+            lastTarget = target;
+            uids.advance(target);
+        }
+
+        @Override
+        void next() throws IOException {
+            uids.next();
+        }
+
+        @Override
+        byte[] current() {
+            return uids.current();
+        }
+
+        /**
+         * Gather the uids of every matching value of the field within the shard.
+         */
+        private void expand(final byte[] shard) throws IOException {
+            uids.clear();
+            expandedShard = shard;
+            byte[] start = EMPTY;
+            if (null != lowerBytes) {
+                start = lowerInclusive ? lowerBytes : Arrays.copyOf(lowerBytes, lowerBytes.length + 1);
+                if (!lowerInclusive) {
+                    start[lowerBytes.length] = 0x01;
+                }
+            }
+            if (null != prefixBytes && KeyBytes.compare(prefixBytes, start) > 0) {
+                start = prefixBytes;
+            }
+            startKey.set(shard, columnFamily, start);
+            if (null != upperBytes) {
+                // value \x00 sorts before every fi key of the value, value \x01 after them
+                final byte[] end = Arrays.copyOf(upperBytes, upperBytes.length + 1);
+                end[upperBytes.length] = (byte) (upperInclusive ? 0x01 : 0x00);
+                endKey.set(shard, columnFamily, end);
+            } else {
+                endKey.set(shard, followingColumnFamily, EMPTY);
+            }
+            source.seek(range, Collections.EMPTY_LIST, false);
+
+            byte[] previousValue = null;
+            boolean previousMatched = false;
+            while (source.hasTop()) {
+                final ByteSequence columnQualifier = source.getTopKey().getColumnQualifierData();
+                // value \x00 datatype \x00 uid, the value may itself hold nulls
+                final int uidNull = KeyBytes.lastIndexOf(columnQualifier, KeyBytes.NULL_BYTE);
+                final int valueEnd = uidNull > 0 ? lastIndexOf(columnQualifier, uidNull - 1) : -1;
+                if (valueEnd >= 0) {
+                    if (null != prefixBytes && !startsWith(columnQualifier, valueEnd, prefixBytes)) {
+                        break;
+                    }
+                    if (null == previousValue || !KeyBytes.regionEquals(columnQualifier, 0, valueEnd, previousValue)) {
+                        previousValue = new byte[valueEnd];
+                        KeyBytes.copy(columnQualifier, 0, valueEnd, previousValue, 0);
+                        previousMatched = null == pattern ||
+                                pattern.matcher(new String(previousValue, StandardCharsets.UTF_8)).matches();
+                    }
+                    if (previousMatched) {
+                        final byte[] documentId = new byte[columnQualifier.length() - valueEnd - 1];
+                        KeyBytes.copy(columnQualifier, valueEnd + 1, columnQualifier.length(), documentId, 0);
+                        uids.add(documentId);
+                    }
+                }
+                source.next();
+            }
+            uids.finish();
+        }
+
+        private static int lastIndexOf(final ByteSequence sequence, final int from) {
+            for (int i = from; i >= 0; i--) {
+                if (sequence.byteAt(i) == KeyBytes.NULL_BYTE) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean startsWith(final ByteSequence sequence, final int end, final byte[] prefix) {
+            return end >= prefix.length && KeyBytes.regionEquals(sequence, 0, prefix.length, prefix);
+        }
+
+        @Override
+        boolean isBounded() {
+            return true;
+        }
+
+        @Override
+        void release() {
+            uids.clear();
+            expandedShard = null;
+            lastTarget = null;
+        }
+
+        @Override
+        void init(final SortedKeyValueIterator<Key, Value> source, final IteratorEnvironment env, final Map<String, String> options) {
+            this.source = source.deepCopy(env);
+            columnFamily = ("fi" + FieldIndexMergingIterator.NULL + fieldName).getBytes(StandardCharsets.UTF_8);
+            followingColumnFamily = Arrays.copyOf(columnFamily, columnFamily.length + 1);
+            prefixBytes = null == prefix || prefix.isEmpty() ? null : prefix.getBytes(StandardCharsets.UTF_8);
+            lowerBytes = null == lower ? null : lower.getBytes(StandardCharsets.UTF_8);
+            upperBytes = null == upper ? null : upper.getBytes(StandardCharsets.UTF_8);
+            final String spillDirectory = options.get(FieldIndexQueryIterator.SPILL_DIRECTORY);
+            uids = new SortedUidBuffer(Integer.parseInt(options.getOrDefault(FieldIndexQueryIterator.EXPANSION_BUFFER, "100000")),
+                    null == spillDirectory ? null : new File(spillDirectory));
+        }
+
+        @Override
+        public String toString() {
+            if (null != pattern) {
+                return fieldName + " =~ '" + pattern.pattern() + "'";
+            }
+            if (null != prefix) {
+                return fieldName + " =^ '" + prefix + "'";
+            }
+            final StringBuilder builder = new StringBuilder("(");
+            if (null != lower) {
+                builder.append(fieldName).append(lowerInclusive ? " >= '" : " > '").append(lower).append("'");
+            }
+            if (null != upper) {
+                builder.append(null != lower ? " && " : "").append(fieldName).append(upperInclusive ? " <= '" : " < '").append(upper).append("'");
+            }
+            return builder.append(")").toString();
+        }
+    }
+
+    /**
+     * !node, only evaluated as a filter within an And
+     */
+    static class Not extends QueryNode {
+        final QueryNode child;
+
+        Not(final QueryNode child) {
+            this.child = child;
+        }
+
+        @Override
+        boolean matches(final byte[] shard, final byte[] documentId) throws IOException {
+            return !child.matches(shard, documentId);
+        }
+
+        @Override
+        void seek(final byte[] shard, final byte[] target) {
+            throw new IllegalStateException("A negation must be combined with a positive term");
+        }
+
+        @Override
+        void next() {
+            throw new IllegalStateException("A negation must be combined with a positive term");
+        }
+
+        @Override
+        byte[] current() {
+            return null;
+        }
+
+        @Override
+        boolean isBounded() {
+            return false;
+        }
+
+        @Override
+        void init(final SortedKeyValueIterator<Key, Value> source, final IteratorEnvironment env, final Map<String, String> options) {
+            child.init(source, env, options);
+        }
+
+        @Override
+        void release() {
+            child.release();
+        }
+
+        @Override
+        public String toString() {
+            return "!(" + child + ")";
+        }
+    }
+
+    /**
+     * Leapfrogs the bounded children, then filters on the negated and unbounded ones.
+     */
+    static class And extends QueryNode {
+        final List<QueryNode> children;
+        private final List<QueryNode> positive = new ArrayList<>();
+        private final List<QueryNode> filters = new ArrayList<>();
+        private byte[] shard;
+        private byte[] current;
+
+        And(final List<QueryNode> children) {
+            this.children = children;
+            for (QueryNode child : children) {
+                if (child.isBounded()) {
+                    positive.add(child);
+                } else {
+                    filters.add(child);
+                }
+            }
+        }
+
+        @Override
+        void seek(final byte[] shard, final byte[] target) throws IOException {
+            this.shard = shard;
+            for (QueryNode child : positive) {
+                child.seek(shard, target);
+            }
+            leapfrog();
+        }
+
+        @Override
+        void next() throws IOException {
+            // every positive child is on the current document
+            for (QueryNode child : positive) {
+                child.next();
+            }
+            leapfrog();
+        }
+
+        private void leapfrog() throws IOException {
+            while (true) {
+                byte[] max = null;
+                for (QueryNode child : positive) {
+                    if (null == child.current()) {
+                        current = null;
+                        return;
+                    }
+                    if (null == max || KeyBytes.compare(child.current(), max) > 0) {
+                        max = child.current();
+                    }
+                }
+                boolean aligned = true;
+                for (QueryNode child : positive) {
+                    if (KeyBytes.compare(child.current(), max) != 0) {
+                        child.seek(shard, max);
+                        aligned = false;
+                    }
+                }
+                if (!aligned) {
+                    continue;
+                }
+                if (isExcluded(max)) {
+                    final byte[] target = following(max);
+                    for (QueryNode child : positive) {
+                        child.seek(shard, target);
+                    }
+                    continue;
+                }
+                current = max;
+                return;
+            }
+        }
+
+        private boolean isExcluded(final byte[] documentId) throws IOException {
+            for (QueryNode filter : filters) {
+                if (!filter.matches(shard, documentId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        byte[] current() {
+            return current;
+        }
+
+        @Override
+        boolean isBounded() {
+            return !positive.isEmpty();
+        }
+
+        @Override
+        boolean matches(final byte[] shard, final byte[] documentId) throws IOException {
+            for (QueryNode child : children) {
+                if (!child.matches(shard, documentId)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void init(final SortedKeyValueIterator<Key, Value> source, final IteratorEnvironment env, final Map<String, String> options) {
+            children.forEach(child -> child.init(source, env, options));
+        }
+
+        @Override
+        void release() {
+            children.forEach(QueryNode::release);
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " && ");
+        }
+    }
+
+    /**
+     * Merges the children, each document appearing once.
+     */
+    static class Or extends QueryNode {
+        final List<QueryNode> children;
+        private byte[] current;
+
+        Or(final List<QueryNode> children) {
+            this.children = children;
+        }
+
+        @Override
+        void seek(final byte[] shard, final byte[] target) throws IOException {
+            for (QueryNode child : children) {
+                child.seek(shard, target);
+            }
+            findMin();
+        }
+
+        @Override
+        void next() throws IOException {
+            final byte[] previous = current;
+            for (QueryNode child : children) {
+                if (null != child.current() && KeyBytes.compare(child.current(), previous) == 0) {
+                    child.next();
+                }
+            }
+            findMin();
+        }
+
+        private void findMin() {
+            current = null;
+            for (QueryNode child : children) {
+                if (null != child.current() && (null == current || KeyBytes.compare(child.current(), current) < 0)) {
+                    current = child.current();
+                }
+            }
+        }
+
+        @Override
+        byte[] current() {
+            return current;
+        }
+
+        @Override
+        boolean isBounded() {
+            for (QueryNode child : children) {
+                if (!child.isBounded()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean matches(final byte[] shard, final byte[] documentId) throws IOException {
+            for (QueryNode child : children) {
+                if (child.matches(shard, documentId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void init(final SortedKeyValueIterator<Key, Value> source, final IteratorEnvironment env, final Map<String, String> options) {
+            children.forEach(child -> child.init(source, env, options));
+        }
+
+        @Override
+        void release() {
+            children.forEach(QueryNode::release);
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " || ");
+        }
+    }
+
+    private static String join(final List<QueryNode> children, final String operator) {
+        final StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < children.size(); i++) {
+            if (i > 0) {
+                builder.append(operator);
+            }
+            builder.append(children.get(i));
+        }
+        return builder.append(")").toString();
+    }
+}
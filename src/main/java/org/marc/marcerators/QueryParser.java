@@ -0,0 +1,196 @@
+package org.marc.marcerators;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Purpose: Parses the boolean queries accepted by FieldIndexQueryIterator, e.g.
+ *
+ * FIELDA == 'value' &amp;&amp; ( FIELDB == 'other' || !( FIELDC == 'x' ) )
+ *
+ * Besides ==, a field may be compared with &gt;=, &lt;=, &gt; and &lt;, matched against a
+ * regular expression with =~, or a prefix with =^. Values are compared as the bytes stored
+ * in the fi keys, so numbers and dates are expected to be lexicoded by the client.
+ *
+ * Assumptions: Field names are made up of letters, digits and underscores. Values are
+ * single quoted, with \' and \\ as the only escapes. ! binds tightest, then &amp;&amp;, then ||.
+ * A negation, or a disjunction holding one, must be joined by &amp;&amp; to a term without
+ * negations, whose documents it then filters. Malformed queries, and queries that could only
+ * be answered by reading every document, are rejected with an IllegalArgumentException.
+ */
+final class QueryParser {
+
+    private final String query;
+    private int position = 0;
+
+    private QueryParser(final String query) {
+        this.query = query;
+    }
+
+    static QueryNode parse(final String query) {
+        final QueryParser parser = new QueryParser(query);
+        final QueryNode node = parser.parseOr();
+        parser.skipWhitespace();
+        if (parser.position < query.length()) {
+            throw parser.error("Unexpected input");
+        }
+        if (!node.isBounded()) {
+            throw new IllegalArgumentException("Every negation in " + query + " must be combined with a term without negations using &&");
+        }
+        return node;
+    }
+
+    private QueryNode parseOr() {
+        final List<QueryNode> children = new ArrayList<>();
+        children.add(parseAnd());
+        while (consume("||")) {
+            children.add(parseAnd());
+        }
+        return children.size() == 1 ? children.get(0) : new QueryNode.Or(flatten(children, QueryNode.Or.class));
+    }
+
+    private QueryNode parseAnd() {
+        final List<QueryNode> children = new ArrayList<>();
+        children.add(parseUnary());
+        while (consume("&&")) {
+            children.add(parseUnary());
+        }
+        if (children.size() == 1) {
+            return children.get(0);
+        }
+        final List<QueryNode> merged = mergeRanges(flatten(children, QueryNode.And.class));
+        return merged.size() == 1 ? merged.get(0) : new QueryNode.And(merged);
+    }
+
+    /**
+     * Combines comparisons of the same field, FIELD &gt;= 'a' &amp;&amp; FIELD &lt; 'b' reading only
+     * the fi keys between a and b rather than everything either side of them.
+     */
+    private static List<QueryNode> mergeRanges(final List<QueryNode> children) {
+        final List<QueryNode> merged = new ArrayList<>();
+        final Map<String, QueryNode.Expansion> ranges = new HashMap<>();
+        for (QueryNode child : children) {
+            if (child instanceof QueryNode.Expansion && ((QueryNode.Expansion) child).isRange()) {
+                final QueryNode.Expansion range = (QueryNode.Expansion) child;
+                final QueryNode.Expansion existing = ranges.get(range.fieldName);
+                if (null != existing) {
+                    existing.intersect(range);
+                    continue;
+                }
+                ranges.put(range.fieldName, range);
+            }
+            merged.add(child);
+        }
+        return merged;
+    }
+
+    private QueryNode parseUnary() {
+        if (consume("!")) {
+            return new QueryNode.Not(parseUnary());
+        }
+        if (consume("(")) {
+            final QueryNode node = parseOr();
+            if (!consume(")")) {
+                throw error("Expected )");
+            }
+            return node;
+        }
+        return parseTerm();
+    }
+
+    private QueryNode parseTerm() {
+        skipWhitespace();
+        final int start = position;
+        while (position < query.length() && (Character.isLetterOrDigit(query.charAt(position)) || query.charAt(position) == '_')) {
+            position++;
+        }
+        if (start == position) {
+            throw error("Expected a field name");
+        }
+        final String fieldName = query.substring(start, position);
+        if (consume("==")) {
+            return new QueryNode.Term(fieldName, parseValue());
+        } else if (consume("=~")) {
+            final String regex = parseValue();
+            try {
+                return QueryNode.Expansion.regex(fieldName, regex);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid regular expression " + regex, e);
+            }
+        } else if (consume("=^")) {
+            return QueryNode.Expansion.prefix(fieldName, parseValue());
+        } else if (consume(">=")) {
+            return QueryNode.Expansion.range(fieldName, parseValue(), true, null, false);
+        } else if (consume("<=")) {
+            return QueryNode.Expansion.range(fieldName, null, false, parseValue(), true);
+        } else if (consume(">")) {
+            return QueryNode.Expansion.range(fieldName, parseValue(), false, null, false);
+        } else if (consume("<")) {
+            return QueryNode.Expansion.range(fieldName, null, false, parseValue(), false);
+        }
+        throw error("Expected ==, =~, =^, >=, <=, > or <");
+    }
+
+    private String parseValue() {
+        skipWhitespace();
+        if (position >= query.length() || query.charAt(position) != '\'') {
+            throw error("Expected a quoted value");
+        }
+        position++;
+        final StringBuilder value = new StringBuilder();
+        while (position < query.length()) {
+            final char c = query.charAt(position++);
+            if (c == '\'') {
+                return value.toString();
+            }
+            if (c == '\\') {
+                if (position >= query.length()) {
+                    break;
+                }
+                value.append(query.charAt(position++));
+            } else {
+                value.append(c);
+            }
+        }
+        throw error("Unterminated value");
+    }
+
+    /**
+     * Merges nested nodes of the same kind, a && ( b && c ) becoming a && b && c.
+     */
+    private static List<QueryNode> flatten(final List<QueryNode> children, final Class<? extends QueryNode> kind) {
+        final List<QueryNode> flattened = new ArrayList<>();
+        for (QueryNode child : children) {
+            if (kind == QueryNode.And.class && child instanceof QueryNode.And) {
+                flattened.addAll(((QueryNode.And) child).children);
+            } else if (kind == QueryNode.Or.class && child instanceof QueryNode.Or) {
+                flattened.addAll(((QueryNode.Or) child).children);
+            } else {
+                flattened.add(child);
+            }
+        }
+        return flattened;
+    }
+
+    private boolean consume(final String token) {
+        skipWhitespace();
+        if (query.startsWith(token, position)) {
+            position += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (position < query.length() && Character.isWhitespace(query.charAt(position))) {
+            position++;
+        }
+    }
+
+    private IllegalArgumentException error(final String message) {
+        return new IllegalArgumentException(message + " at position " + position + " of " + query);
+    }
+}
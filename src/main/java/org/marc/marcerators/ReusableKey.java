@@ -0,0 +1,31 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.Key;
+
+/**
+ * Purpose: Key whose row, column family and column qualifier can be replaced in place so
+ * that a single Range built over these keys can be reused for every seek.
+ *
+ * Assumptions: The arrays handed to set are not modified while the key is in use, and
+ * a Range over these keys is only mutated before the source it was given to is sought again.
+ */
+class ReusableKey extends Key {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    ReusableKey() {
+        super(EMPTY, EMPTY, EMPTY, EMPTY, Long.MAX_VALUE, false, false);
+    }
+
+    /**
+     * Points the key at the given arrays, with an empty visibility and the newest timestamp.
+     */
+    void set(final byte[] row, final byte[] columnFamily, final byte[] columnQualifier) {
+        this.row = row;
+        this.colFamily = columnFamily;
+        this.colQualifier = columnQualifier;
+        this.colVisibility = EMPTY;
+        this.timestamp = Long.MAX_VALUE;
+        this.deleted = false;
+    }
+}
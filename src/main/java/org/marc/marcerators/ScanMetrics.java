@@ -0,0 +1,133 @@
+package org.marc.marcerators;
+
+import com.google.common.base.Splitter;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Purpose: Counters of the work FieldIndexMergingIterator does between seeks. They are added to
+ * the tablet server wide FieldIndexMetricsRegistry after each batch and, with EMIT_STATS, returned
+ * to the client after the last document under a stats key.
+ *
+ * A stats key is the last event key read with the column qualifier extended by \x00 \x00 stats,
+ * sorting after the documents and any of their chunks and profiles. Its value lists NAME=count pairs,
+ * separated by commas.
+ *
+ * Assumptions: Counters are plain longs updated by the single thread driving the iterator.
+ */
+public final class ScanMetrics {
+
+    public enum Counter {
+        EVENT_KEYS_READ,
+        FIELDS_SKIPPED,
+        DEEP_COPIES_CREATED,
+        FI_SEEKS,
+        FI_KEYS_SCANNED,
+        DOCUMENTS_VERIFIED,
+        DOCUMENTS_REJECTED,
+        SERIALIZED_BYTES,
+        FIND_TOP_NANOS,
+        MERGE_SOURCES_NANOS,
+        SERIALIZE_NANOS
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+
+    private static final byte[] STATS_SUFFIX = "\u0000\u0000stats".getBytes(StandardCharsets.UTF_8);
+
+    private final long[] counts = new long[COUNTERS.length];
+
+    // counts already added to the registry
+    private final long[] flushed = new long[COUNTERS.length];
+
+    void add(final Counter counter, final long amount) {
+        counts[counter.ordinal()] += amount;
+    }
+
+    void set(final Counter counter, final long count) {
+        counts[counter.ordinal()] = count;
+    }
+
+    public long get(final Counter counter) {
+        return counts[counter.ordinal()];
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+            flushed[i] = 0;
+        }
+    }
+
+    /**
+     * Add the counts gathered since the last flush to the registry.
+     */
+    void flushTo(final FieldIndexMetricsRegistry registry) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != flushed[i]) {
+                registry.add(COUNTERS[i], counts[i] - flushed[i]);
+                flushed[i] = counts[i];
+            }
+        }
+    }
+
+    Value toValue() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(COUNTERS[i].name()).append('=').append(counts[i]);
+        }
+        return new Value(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode the value of a stats key. Counters the value does not name stay at zero.
+     * @param value value returned under a stats key
+     * @return the counts
+     */
+    public static ScanMetrics fromValue(final Value value) {
+        final ScanMetrics metrics = new ScanMetrics();
+        final Map<String, String> pairs = Splitter.on(",").omitEmptyStrings().withKeyValueSeparator("=")
+                .split(new String(value.get(), 0, value.getSize(), StandardCharsets.UTF_8));
+        for (Counter counter : COUNTERS) {
+            final String count = pairs.get(counter.name());
+            if (null != count) {
+                metrics.set(counter, Long.parseLong(count));
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @param lastKey last event key read
+     * @return the stats key following it
+     */
+    static Key statsKey(final Key lastKey) {
+        final ByteSequence columnQualifier = lastKey.getColumnQualifierData();
+        final byte[] statsQualifier = new byte[columnQualifier.length() + STATS_SUFFIX.length];
+        KeyBytes.copy(columnQualifier, 0, columnQualifier.length(), statsQualifier, 0);
+        System.arraycopy(STATS_SUFFIX, 0, statsQualifier, columnQualifier.length(), STATS_SUFFIX.length);
+        return new Key(lastKey.getRowData().toArray(), lastKey.getColumnFamilyData().toArray(), statsQualifier,
+                lastKey.getColumnVisibilityData().toArray(), lastKey.getTimestamp());
+    }
+
+    /**
+     * @return true if the key was returned with the scan's counters rather than a document
+     */
+    public static boolean isStatsKey(final Key key) {
+        final ByteSequence columnQualifier = key.getColumnQualifierData();
+        final int start = columnQualifier.length() - STATS_SUFFIX.length;
+        return start >= 0 && KeyBytes.regionEquals(columnQualifier, start, columnQualifier.length(), STATS_SUFFIX);
+    }
+
+    @Override
+    public String toString() {
+        return toValue().toString();
+    }
+}
@@ -0,0 +1,223 @@
+package org.marc.marcerators;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Purpose: Collects the datatype \x00 uid of an expanded term in any order and reads them
+ * back sorted and without duplicates, keeping at most a fixed number of them on the heap.
+ *
+ * Assumptions: Once the limit is reached the buffered uids are sorted and written to a run
+ * in the spill directory. Reading merges the runs with whatever is still buffered. Each run
+ * is unlinked as soon as its reader is open, so it is gone from the directory even should
+ * the buffer never be closed. Where a file system refuses to delete an open file, the run
+ * is deleted once it has been read, or when the buffer is cleared or closed.
+ */
+final class SortedUidBuffer implements Closeable {
+
+    private static final Comparator<byte[]> ORDER = KeyBytes::compare;
+
+    private final int maxInMemory;
+    private final File spillDirectory;
+
+    private final List<byte[]> buffer = new ArrayList<>();
+    // runs not yet deleted
+    private final List<File> runs = new ArrayList<>();
+    private int spillCount = 0;
+
+    // reading state
+    private int position = 0;
+    private final PriorityQueue<RunReader> readers = new PriorityQueue<>((a, b) -> KeyBytes.compare(a.current, b.current));
+    private byte[] current = null;
+    private boolean merging = false;
+
+    SortedUidBuffer(final int maxInMemory, final File spillDirectory) {
+        if (maxInMemory < 1) {
+            throw new IllegalArgumentException("At least one uid must be held in memory");
+        }
+        this.maxInMemory = maxInMemory;
+        this.spillDirectory = spillDirectory;
+    }
+
+    void add(final byte[] documentId) throws IOException {
+        buffer.add(documentId);
+        if (buffer.size() >= maxInMemory) {
+            spill();
+        }
+    }
+
+    /**
+     * Stop adding and position on the smallest uid.
+     * @throws IOException if a run cannot be read
+     */
+    void finish() throws IOException {
+        sortBuffer();
+        position = 0;
+        if (runs.isEmpty()) {
+            current = buffer.isEmpty() ? null : buffer.get(0);
+            return;
+        }
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        merging = true;
+        for (Iterator<File> iterator = runs.iterator(); iterator.hasNext(); ) {
+            final File run = iterator.next();
+            final RunReader reader = new RunReader(run);
+            // the open reader keeps the unlinked run readable
+            if (run.delete()) {
+                iterator.remove();
+            }
+            if (reader.advance()) {
+                readers.add(reader);
+            } else {
+                reader.close();
+            }
+        }
+        current = null;
+        next();
+    }
+
+    /**
+     * @return the current uid, or null once all have been read
+     */
+    byte[] current() {
+        return current;
+    }
+
+    void next() throws IOException {
+        if (!merging) {
+            current = ++position < buffer.size() ? buffer.get(position) : null;
+            return;
+        }
+        final byte[] previous = current;
+        current = null;
+        while (!readers.isEmpty()) {
+            final RunReader reader = readers.poll();
+            final byte[] candidate = reader.current;
+            if (reader.advance()) {
+                readers.add(reader);
+            } else {
+                reader.close();
+            }
+            // the same uid may have been spilled in several runs
+            if (null == previous || KeyBytes.compare(candidate, previous) > 0) {
+                current = candidate;
+                return;
+            }
+        }
+        // every run has been read
+        runs.forEach(File::delete);
+        runs.clear();
+    }
+
+    /**
+     * Move forward to the first uid at or after the target.
+     * @param target datatype \x00 uid
+     * @throws IOException if a run cannot be read
+     */
+    void advance(final byte[] target) throws IOException {
+        if (!merging) {
+            if (null == current || KeyBytes.compare(current, target) >= 0) {
+                return;
+            }
+            int index = Collections.binarySearch(buffer.subList(position, buffer.size()), target, ORDER);
+            position += index >= 0 ? index : -index - 1;
+            current = position < buffer.size() ? buffer.get(position) : null;
+            return;
+        }
+        while (null != current && KeyBytes.compare(current, target) < 0) {
+            next();
+        }
+    }
+
+    /**
+     * @return runs spilled since the buffer was last cleared
+     */
+    int getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * Discard everything so the buffer can be filled again.
+     */
+    void clear() {
+        buffer.clear();
+        position = 0;
+        current = null;
+        merging = false;
+        for (RunReader reader : readers) {
+            reader.close();
+        }
+        readers.clear();
+        runs.forEach(File::delete);
+        runs.clear();
+        spillCount = 0;
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * Sorts the buffer, dropping duplicates.
+     */
+    private void sortBuffer() {
+        buffer.sort(ORDER);
+        int unique = 0;
+        for (int i = 0; i < buffer.size(); i++) {
+            if (unique == 0 || KeyBytes.compare(buffer.get(unique - 1), buffer.get(i)) != 0) {
+                buffer.set(unique++, buffer.get(i));
+            }
+        }
+        buffer.subList(unique, buffer.size()).clear();
+    }
+
+    private void spill() throws IOException {
+        sortBuffer();
+        final File run = File.createTempFile("fi-expansion", ".run", spillDirectory);
+        runs.add(run);
+        spillCount++;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for (byte[] documentId : buffer) {
+                out.writeInt(documentId.length);
+                out.write(documentId);
+            }
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads one sorted run back.
+     */
+    private static class RunReader {
+        final DataInputStream in;
+        byte[] current;
+
+        RunReader(final File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+        }
+
+        boolean advance() throws IOException {
+            final int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            }
+            current = new byte[length];
+            in.readFully(current);
+            return true;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // the run is deleted regardless
+            }
+        }
+    }
+}
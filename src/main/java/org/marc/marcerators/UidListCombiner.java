@@ -0,0 +1,158 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.IteratorUtil;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Purpose: Combines global index entries so that their Uid.List values stay bounded
+ * between compactions rather than being merged by every scan.
+ *
+ * Assumptions: Values are Uid.List messages, read with UidListReader and written directly
+ * in the same wire format. Uid sets are merged, removed and quarantined uids are taken out
+ * of them, and COUNT is the number of uids that remain, so a uid listed by several inputs
+ * is counted once. Once more than MAX_UIDS uids remain the result keeps only that count with
+ * IGNORE set. The uids behind an input with IGNORE set are no longer known, so its COUNT is
+ * added to the number of uids remaining from the other inputs, and the result, also ignored,
+ * may count a uid more than once. Removed and quarantined uids are carried forward so that
+ * they still apply to entries in other files, except on a full major compaction where
+ * nothing older remains.
+ */
+public class UidListCombiner extends Combiner {
+
+    public static final String MAX_UIDS = "MAX_UIDS";
+
+    public static final int DEFAULT_MAX_UIDS = 20;
+
+    private int maxUids = DEFAULT_MAX_UIDS;
+
+    private boolean propagateRemovals = true;
+
+    private final UidListReader reader = new UidListReader();
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @Override
+    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env) throws IOException {
+        super.init(source, options, env);
+        if (options.containsKey(MAX_UIDS)) {
+            maxUids = Integer.parseInt(options.get(MAX_UIDS));
+        }
+        propagateRemovals = !(env.getIteratorScope() == IteratorUtil.IteratorScope.majc && env.isFullMajorCompaction());
+    }
+
+    @Override
+    public IteratorOptions describeOptions() {
+        final IteratorOptions options = super.describeOptions();
+        options.setName("uidListCombiner");
+        options.setDescription("Merges global index Uid.List values, keeping at most " + MAX_UIDS + " uids");
+        options.addNamedOption(MAX_UIDS, "number of uids kept before only the count is kept, defaults to " + DEFAULT_MAX_UIDS);
+        return options;
+    }
+
+    @Override
+    public boolean validateOptions(Map<String, String> options) {
+        if (!super.validateOptions(options)) {
+            return false;
+        }
+        if (options.containsKey(MAX_UIDS) && Integer.parseInt(options.get(MAX_UIDS)) < 0) {
+            throw new IllegalArgumentException(MAX_UIDS + " must not be negative");
+        }
+        return true;
+    }
+
+    @Override
+    public Value reduce(Key key, Iterator<Value> iter) {
+        try {
+            return combine(iter);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to combine " + key, e);
+        }
+    }
+
+    private Value combine(final Iterator<Value> iter) throws IOException {
+        boolean ignore = false;
+        // COUNT of the inputs whose uids are not listed
+        long ignoredCount = 0;
+        final TreeSet<ByteSequence> uids = new TreeSet<>();
+        final TreeSet<ByteSequence> removed = new TreeSet<>();
+        final TreeSet<ByteSequence> quarantined = new TreeSet<>();
+        while (iter.hasNext()) {
+            final byte[] value = iter.next().get();
+            reader.reset(value, 0, value.length);
+            if (reader.isIgnore()) {
+                ignore = true;
+                ignoredCount += reader.getCount();
+            }
+            for (int field = reader.nextEntry(); field >= 0; field = reader.nextEntry()) {
+                final TreeSet<ByteSequence> entries;
+                if (field == UidListReader.UID) {
+                    entries = uids;
+                } else if (field == UidListReader.REMOVEDUID) {
+                    entries = removed;
+                } else {
+                    entries = quarantined;
+                }
+                // the values belong to the source, so only copy entries that are new
+                final ByteSequence entry = reader.entry();
+                if (!entries.contains(entry)) {
+                    entries.add(new ArrayByteSequence(reader.copyEntry()));
+                }
+            }
+        }
+
+        uids.removeAll(removed);
+        uids.removeAll(quarantined);
+        if (ignore || uids.size() > maxUids) {
+            return write(true, ignoredCount + uids.size(), Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+        }
+        if (!propagateRemovals) {
+            return write(false, uids.size(), uids, Collections.emptySet(), Collections.emptySet());
+        }
+        return write(false, uids.size(), uids, removed, quarantined);
+    }
+
+    private Value write(final boolean ignore, final long count, final Set<ByteSequence> uids, final Set<ByteSequence> removed,
+                        final Set<ByteSequence> quarantined) {
+        output.reset();
+        writeTag(UidListReader.IGNORE, 0);
+        writeVarint(ignore ? 1 : 0);
+        writeTag(UidListReader.COUNT, 0);
+        // ignored inputs may record removals as negative counts, never report fewer than none
+        writeVarint(Math.max(0, count));
+        writeEntries(UidListReader.UID, uids);
+        writeEntries(UidListReader.REMOVEDUID, removed);
+        writeEntries(UidListReader.QUARANTINEUID, quarantined);
+        return new Value(output.toByteArray());
+    }
+
+    private void writeEntries(final int field, final Set<ByteSequence> entries) {
+        for (ByteSequence entry : entries) {
+            writeTag(field, 2);
+            writeVarint(entry.length());
+            output.write(entry.getBackingArray(), entry.offset(), entry.length());
+        }
+    }
+
+    private void writeTag(final int field, final int wireType) {
+        writeVarint((field << 3) | wireType);
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+}
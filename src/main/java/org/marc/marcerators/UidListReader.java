@@ -0,0 +1,202 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+
+import java.io.IOException;
+
+/**
+ * Purpose: Reads a serialized Uid.List in place, without the string lists that
+ * Uid.List.parseFrom builds for every uid.
+ *
+ * Assumptions: The bytes are a Uid.List message and are not modified while being read.
+ * IGNORE and COUNT are found by skipping over the uids. Uids are visited one entry at a
+ * time as offsets into the message, and are only wrapped or copied when asked for.
+ * Malformed or truncated messages, and messages without IGNORE or COUNT, cause an IOException.
+ */
+public final class UidListReader {
+
+    public static final int IGNORE = 1;
+    public static final int COUNT = 2;
+    public static final int UID = 3;
+    public static final int REMOVEDUID = 4;
+    public static final int QUARANTINEUID = 5;
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    private byte[] bytes;
+    private int start;
+    private int end;
+
+    private boolean ignore;
+    private long count;
+
+    // position of the entry cursor
+    private int position;
+    private int entryField;
+    private int entryOffset;
+    private int entryLength;
+
+    public UidListReader() {
+    }
+
+    public UidListReader(final byte[] bytes) throws IOException {
+        reset(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Point the reader at a new message and read its IGNORE and COUNT.
+     * @param bytes buffer holding the message
+     * @param offset start of the message
+     * @param length length of the message
+     * @throws IOException if the message is malformed
+     */
+    public void reset(final byte[] bytes, final int offset, final int length) throws IOException {
+        this.bytes = bytes;
+        this.start = offset;
+        this.end = offset + length;
+        readHeader();
+        position = start;
+        entryField = 0;
+    }
+
+    public boolean isIgnore() {
+        return ignore;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Advance to the next uid entry, in the order they were written.
+     * @return the entry's field, UID, REMOVEDUID or QUARANTINEUID, or -1 when there are no more
+     * @throws IOException if the message is malformed
+     */
+    public int nextEntry() throws IOException {
+        while (position < end) {
+            final long tag = readVarint();
+            final int field = (int) (tag >>> 3);
+            final int wireType = (int) (tag & 0x7);
+            if (wireType == WIRETYPE_LENGTH_DELIMITED && field >= UID && field <= QUARANTINEUID) {
+                entryLength = readLength();
+                entryOffset = position;
+                entryField = field;
+                position += entryLength;
+                return field;
+            }
+            skip(wireType);
+        }
+        entryField = 0;
+        return -1;
+    }
+
+    public int entryField() {
+        return entryField;
+    }
+
+    public byte[] entryBuffer() {
+        return bytes;
+    }
+
+    public int entryOffset() {
+        return entryOffset;
+    }
+
+    public int entryLength() {
+        return entryLength;
+    }
+
+    /**
+     * @return the current entry, backed by the message buffer
+     */
+    public ByteSequence entry() {
+        return new ArrayByteSequence(bytes, entryOffset, entryLength);
+    }
+
+    /**
+     * @return a copy of the current entry
+     */
+    public byte[] copyEntry() {
+        final byte[] copy = new byte[entryLength];
+        System.arraycopy(bytes, entryOffset, copy, 0, entryLength);
+        return copy;
+    }
+
+    private void readHeader() throws IOException {
+        boolean hasIgnore = false;
+        boolean hasCount = false;
+        ignore = false;
+        count = 0;
+        position = start;
+        while (position < end) {
+            final long tag = readVarint();
+            final int field = (int) (tag >>> 3);
+            final int wireType = (int) (tag & 0x7);
+            if (field == IGNORE && wireType == WIRETYPE_VARINT) {
+                ignore = readVarint() != 0;
+                hasIgnore = true;
+            } else if (field == COUNT && wireType == WIRETYPE_VARINT) {
+                count = readVarint();
+                hasCount = true;
+            } else {
+                skip(wireType);
+            }
+        }
+        if (!hasIgnore || !hasCount) {
+            throw new IOException("Uid.List is missing IGNORE or COUNT");
+        }
+    }
+
+    private void skip(final int wireType) throws IOException {
+        switch (wireType) {
+            case WIRETYPE_VARINT:
+                readVarint();
+                break;
+            case WIRETYPE_FIXED64:
+                advance(8);
+                break;
+            case WIRETYPE_LENGTH_DELIMITED:
+                advance(readLength());
+                break;
+            case WIRETYPE_FIXED32:
+                advance(4);
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType + " in Uid.List");
+        }
+    }
+
+    private void advance(final int length) throws IOException {
+        if (length > end - position) {
+            throw new IOException("Truncated Uid.List");
+        }
+        position += length;
+    }
+
+    private int readLength() throws IOException {
+        final long length = readVarint();
+        if (length < 0 || length > end - position) {
+            throw new IOException("Truncated Uid.List");
+        }
+        return (int) length;
+    }
+
+    private long readVarint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= end) {
+                throw new IOException("Truncated Uid.List");
+            }
+            final byte b = bytes[position++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint in Uid.List");
+    }
+}
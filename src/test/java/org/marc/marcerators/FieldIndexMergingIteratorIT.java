@@ -0,0 +1,219 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.client.AccumuloClient;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.admin.NewTableConfiguration;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.minicluster.MiniAccumuloCluster;
+import org.apache.accumulo.minicluster.MiniAccumuloConfig;
+import org.apache.hadoop.io.Text;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Purpose: End to end throughput and latency of FieldIndexMergingIterator through the tablet
+ * server scan path. Documents are loaded into a MiniAccumuloCluster and fetched by document id
+ * with BatchScanners at several levels of client concurrency, reporting documents per second
+ * and p50 / p99 request latency.
+ *
+ *     mvn test -Dtest=FieldIndexMergingIteratorIT -Dit.documents=2000000
+ *
+ * Assumptions: Not run by the default build, which only picks up Test* classes. The cluster's
+ * tablet servers share the test classpath, so the iterator needs no deployment. Sizes may be
+ * changed through the it.* system properties below.
+ */
+public class FieldIndexMergingIteratorIT {
+
+    private static final String NULL = "\u0000";
+    private static final String TABLE = "shard";
+    private static final String DATATYPE = "dataType";
+
+    private static final int DOCUMENTS = Integer.getInteger("it.documents", 2000000);
+    private static final int SHARDS = Integer.getInteger("it.shards", 32);
+    private static final int FIELDS = Integer.getInteger("it.fields", 10);
+    private static final int DOCUMENTS_PER_REQUEST = Integer.getInteger("it.documentsPerRequest", 100);
+    private static final int REQUESTS = Integer.getInteger("it.requests", 200);
+    private static final int QUERY_THREADS = Integer.getInteger("it.queryThreads", 8);
+
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static MiniAccumuloCluster cluster;
+    private static AccumuloClient client;
+
+    @BeforeClass
+    public static void setupCluster() throws Exception {
+        cluster = new MiniAccumuloCluster(new MiniAccumuloConfig(folder.newFolder("mac"), "password"));
+        cluster.start();
+        client = cluster.createAccumuloClient("root", new PasswordToken("password"));
+
+        // a tablet per shard, as in a shard table
+        final SortedSet<Text> splits = new TreeSet<>();
+        for (int shard = 1; shard < SHARDS; shard++) {
+            splits.add(new Text(shardName(shard)));
+        }
+        client.tableOperations().create(TABLE, new NewTableConfiguration().withSplits(splits));
+
+        final Random random = new Random(42);
+        final Value empty = new Value(new byte[0]);
+        try (BatchWriter writer = client.createBatchWriter(TABLE, new BatchWriterConfig().setMaxMemory(64 * 1024 * 1024))) {
+            for (int document = 0; document < DOCUMENTS; document++) {
+                final Mutation mutation = new Mutation(shardName(document % SHARDS));
+                final String uid = uid(document);
+                for (int field = 0; field < FIELDS; field++) {
+                    final String value = "value" + random.nextInt(1000);
+                    //  shard datatype\u0000uid : fieldname\u0000fieldvalue
+                    mutation.put(DATATYPE + NULL + uid, "FIELD" + field + NULL + value, empty);
+                    //  shard fi\u0000fieldname : fieldvalue\u0000datatype\u0000uid
+                    mutation.put("fi" + NULL + "FIELD" + field, value + NULL + DATATYPE + NULL + uid, empty);
+                }
+                writer.addMutation(mutation);
+            }
+        }
+        // read from files, as a long lived table would be
+        client.tableOperations().compact(TABLE, null, null, true, true);
+    }
+
+    @AfterClass
+    public static void teardownCluster() throws Exception {
+        if (null != client) {
+            client.close();
+        }
+        if (null != cluster) {
+            cluster.stop();
+        }
+    }
+
+    private static String shardName(final int shard) {
+        return String.format("20200201_%03d", shard);
+    }
+
+    private static String uid(final int document) {
+        return String.format("uid.%010d", document);
+    }
+
+    private static Range documentRange(final int document) {
+        final Key documentKey = new Key(shardName(document % SHARDS), DATATYPE + NULL + uid(document));
+        return new Range(documentKey, true, documentKey.followingKey(PartialKey.ROW_COLFAM), false);
+    }
+
+    @Test
+    public void testThroughputAndLatency() throws Exception {
+        for (int concurrency : new int[]{1, 4, 16}) {
+            fetch(concurrency, false);
+        }
+        fetch(4, true);
+    }
+
+    @Test
+    public void testDocumentFetcher() {
+        final Random random = new Random(7);
+        final Set<String> requested = new TreeSet<>();
+        final List<DocumentFetcher.DocumentId> ids = new ArrayList<>();
+        while (requested.size() < 10000) {
+            final int document = random.nextInt(DOCUMENTS);
+            if (requested.add(uid(document))) {
+                ids.add(new DocumentFetcher.DocumentId(shardName(document % SHARDS), DATATYPE, uid(document)));
+            }
+        }
+        final DocumentFetcher fetcher = new DocumentFetcher(client, TABLE, Authorizations.EMPTY).setQueryThreads(QUERY_THREADS).setDocumentsPerScan(1000);
+        final Set<String> found = new TreeSet<>();
+        final long start = System.nanoTime();
+        try (DocumentFetcher.DocumentIterator documents = fetcher.fetch(ids)) {
+            documents.forEachRemaining(doc -> found.add(doc.docId));
+        }
+        System.out.println(String.format("DocumentFetcher: %.0f docs/sec", found.size() / ((System.nanoTime() - start) / 1e9)));
+        Assert.assertEquals(requested, found);
+    }
+
+    /**
+     * Issue REQUESTS requests of DOCUMENTS_PER_REQUEST random documents from each client thread.
+     * @param concurrency client threads, each with its own BatchScanner
+     * @param documentScan resolve the documents of a request with a single DOCUMENT_IDS scan per shard
+     */
+    private void fetch(final int concurrency, final boolean documentScan) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final long[] latencies = new long[concurrency * REQUESTS];
+        final AtomicLong documents = new AtomicLong();
+        final List<Future<?>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (int thread = 0; thread < concurrency; thread++) {
+            final int first = thread * REQUESTS;
+            final Random random = new Random(thread);
+            futures.add(executor.submit(() -> {
+                try (BatchScanner scanner = client.createBatchScanner(TABLE, Authorizations.EMPTY, QUERY_THREADS)) {
+                    for (int request = 0; request < REQUESTS; request++) {
+                        final long requestStart = System.nanoTime();
+                        final int found = fetchDocuments(scanner, random, documentScan);
+                        latencies[first + request] = System.nanoTime() - requestStart;
+                        // every document was loaded with all of its fi keys
+                        Assert.assertEquals(DOCUMENTS_PER_REQUEST, found);
+                        documents.addAndGet(found);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        final long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%s concurrency %d: %.0f docs/sec, p50 %.2f ms, p99 %.2f ms",
+                documentScan ? "DOCUMENT_IDS" : "document ranges", concurrency,
+                documents.get() / (elapsed / 1e9),
+                latencies[latencies.length / 2] / 1e6,
+                latencies[(int) (latencies.length * 0.99)] / 1e6));
+    }
+
+    private int fetchDocuments(final BatchScanner scanner, final Random random, final boolean documentScan) {
+        final Set<Integer> requested = new TreeSet<>();
+        while (requested.size() < DOCUMENTS_PER_REQUEST) {
+            requested.add(random.nextInt(DOCUMENTS));
+        }
+        scanner.clearScanIterators();
+        final Map<String, String> options = new HashMap<>();
+        final List<Range> ranges = new ArrayList<>();
+        if (documentScan) {
+            final StringJoiner ids = new StringJoiner(",");
+            final Set<String> shards = new TreeSet<>();
+            requested.forEach(document -> {
+                ids.add(DATATYPE + NULL + uid(document));
+                shards.add(shardName(document % SHARDS));
+            });
+            options.put(FieldIndexMergingIterator.DOCUMENT_IDS, ids.toString());
+            shards.forEach(shard -> ranges.add(Range.exact(shard)));
+        } else {
+            requested.forEach(document -> ranges.add(documentRange(document)));
+        }
+        scanner.addScanIterator(new IteratorSetting(50, "fi", FieldIndexMergingIterator.class, options));
+        scanner.setRanges(ranges);
+        int found = 0;
+        for (Map.Entry<Key, Value> entry : scanner) {
+            found++;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,90 @@
+package org.marc.marcerators;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TestDocument {
+
+    @Test
+    public void testDocumentFieldsView() {
+        Document doc = new Document();
+        doc.docId = "uid";
+        doc.add("FIELDA","value1");
+        doc.add("FIELDB","value");
+        doc.add("FIELDA","value2");
+
+        final Map<String, String> fields = doc.getDocumentFields();
+        Assert.assertSame(fields, doc.documentFields);
+        Assert.assertEquals(2, fields.size());
+        Assert.assertEquals("value2", fields.get("FIELDA"));
+
+        // writes through the view reach the document
+        Assert.assertEquals("value2", fields.put("FIELDA","value3"));
+        Assert.assertEquals("value1", doc.getValue(0));
+        Assert.assertEquals("value3", doc.get("FIELDA"));
+        fields.put("FIELDC","value");
+        Assert.assertEquals(4, doc.size());
+
+        Assert.assertEquals("value3", fields.remove("FIELDA"));
+        Assert.assertEquals(2, doc.size());
+        Assert.assertEquals("FIELDB", doc.getName(0));
+        Assert.assertNull(doc.get("FIELDA"));
+
+        final Iterator<Map.Entry<String, String>> entries = fields.entrySet().iterator();
+        final Map.Entry<String, String> entry = entries.next();
+        entry.setValue("changed");
+        Assert.assertEquals("changed", doc.get("FIELDB"));
+        entries.next();
+        entries.remove();
+        Assert.assertEquals(1, doc.size());
+
+        fields.clear();
+        Assert.assertEquals(0, doc.size());
+        Assert.assertEquals("uid", doc.docId);
+    }
+
+    @Test
+    public void testAssignedDocumentFields() {
+        Document doc = new Document();
+        doc.add("FIELDA","value");
+
+        // code written against the public map may still assign its own
+        Map<String, String> assigned = new LinkedHashMap<>();
+        assigned.put("FIELDB","value1");
+        assigned.put("FIELDC","value2");
+        doc.documentFields = assigned;
+        Assert.assertEquals(2, doc.size());
+        Assert.assertEquals("FIELDB", doc.getName(0));
+        Assert.assertNull(doc.get("FIELDA"));
+        Assert.assertEquals(assigned, doc.getDocumentFields());
+        Assert.assertSame(doc.getDocumentFields(), doc.documentFields);
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        Document doc = new Document();
+        doc.docId = "uid";
+        doc.add("FIELDA","value");
+        doc.add("FIELDB","value");
+
+        Document same = new Document();
+        same.docId = "uid";
+        same.add("FIELDA","value");
+        same.add("FIELDB","value");
+        Assert.assertEquals(doc, same);
+        Assert.assertEquals(doc.hashCode(), same.hashCode());
+
+        Document reordered = new Document();
+        reordered.docId = "uid";
+        reordered.add("FIELDB","value");
+        reordered.add("FIELDA","value");
+        Assert.assertNotEquals(doc, reordered);
+
+        same.docId = "other";
+        Assert.assertNotEquals(doc, same);
+    }
+}
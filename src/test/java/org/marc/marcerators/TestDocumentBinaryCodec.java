@@ -0,0 +1,58 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TestDocumentBinaryCodec {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Document doc = new Document();
+        doc.docId = "uid";
+        doc.add("FIELDA","value");
+        doc.add("FIELDB","binary\u0000\u0001\"value\"");
+        doc.add("FIELDC","élève");
+        StringBuilder longValue = new StringBuilder();
+        for(int i=0; i < 1000; i++){
+            longValue.append("long");
+        }
+        doc.add("FIELDD",longValue.toString());
+
+        Document read = DocumentBinaryCodec.decode(new DocumentBinaryCodec().toValue(doc));
+        Assert.assertEquals(doc.docId, read.docId);
+        Assert.assertEquals(doc.getDocumentFields(), read.getDocumentFields());
+    }
+
+    @Test
+    public void testMultipleValues() throws IOException {
+        Document doc = new Document();
+        doc.docId = "uid";
+        doc.add("FIELDA","value1");
+        doc.add("FIELDB","value");
+        doc.add("FIELDA","value2");
+
+        Document read = DocumentBinaryCodec.decode(new DocumentBinaryCodec().toValue(doc));
+        Assert.assertEquals(3, read.size());
+        Assert.assertEquals(Arrays.asList("value1","value2"), read.getAll("FIELDA"));
+        Assert.assertEquals("value2", read.get("FIELDA"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        Document doc = new Document();
+        doc.docId = "uid";
+        doc.add("FIELDA","value");
+
+        byte [] encoded = new DocumentBinaryCodec().toValue(doc).get();
+        DocumentBinaryCodec.decode(Arrays.copyOf(encoded, encoded.length - 2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testJsonIsRejected() throws IOException {
+        DocumentBinaryCodec.decode(new Value("{\"docId\":\"uid\"}"));
+    }
+}
@@ -0,0 +1,79 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestDocumentChunks {
+
+    private static final String NULL = "\u0000";
+
+    @Test
+    public void testChunkKeys() {
+        Key documentKey = new Key("20190101_1", "datatype" + NULL + "uid", "FIELDA" + NULL + "value");
+        Key first = DocumentChunks.chunkKey(documentKey, 0, 12);
+        Key second = DocumentChunks.chunkKey(documentKey, 1, 12);
+
+        Assert.assertTrue(DocumentChunks.isChunk(first));
+        Assert.assertFalse(DocumentChunks.isChunk(documentKey));
+        Assert.assertEquals(1, DocumentChunks.getIndex(second));
+        Assert.assertEquals(12, DocumentChunks.getCount(second));
+        Assert.assertEquals(documentKey, DocumentChunks.getDocumentKey(second));
+        // chunks follow the document key and precede the next document
+        Assert.assertTrue(documentKey.compareTo(first) < 0);
+        Assert.assertTrue(first.compareTo(second) < 0);
+        Assert.assertTrue(second.compareTo(new Key("20190101_1", "datatype" + NULL + "uie")) < 0);
+    }
+
+    @Test
+    public void testInterleavedDocuments() {
+        Key documentA = new Key("20190101_1", "datatype" + NULL + "a", "FIELDA" + NULL + "value");
+        Key documentB = new Key("20190101_2", "datatype" + NULL + "b", "FIELDA" + NULL + "value");
+        DocumentChunks chunks = new DocumentChunks();
+
+        Assert.assertNull(chunks.add(DocumentChunks.chunkKey(documentA, 0, 2), new Value("ab")));
+        Assert.assertNull(chunks.add(DocumentChunks.chunkKey(documentB, 0, 2), new Value("12")));
+        Assert.assertEquals(new Value("whole"), chunks.add(documentA, new Value("whole")));
+        Assert.assertEquals(new Value("abcd"), chunks.add(DocumentChunks.chunkKey(documentA, 1, 2), new Value("cd")));
+        Assert.assertEquals(1, chunks.getPartialCount());
+        Assert.assertEquals(new Value("123"), chunks.add(DocumentChunks.chunkKey(documentB, 1, 2), new Value("3")));
+        Assert.assertEquals(0, chunks.getPartialCount());
+    }
+
+    @Test
+    public void testChunkListener() throws IOException {
+        Key documentA = new Key("20190101_1", "datatype" + NULL + "a", "FIELDA" + NULL + "value");
+        Key documentB = new Key("20190101_1", "datatype" + NULL + "b", "FIELDA" + NULL + "value");
+        DocumentChunks chunks = new DocumentChunks();
+        List<String> received = new ArrayList<>();
+        DocumentChunks.ChunkListener listener = (documentKey, index, count, chunk) ->
+                received.add(documentKey.getColumnFamily() + " " + index + "/" + count + " " + chunk);
+
+        chunks.add(DocumentChunks.chunkKey(documentA, 0, 2), new Value("ab"), listener);
+        chunks.add(documentB, new Value("whole"), listener);
+        Assert.assertEquals(1, chunks.getPartialCount());
+        chunks.add(DocumentChunks.chunkKey(documentA, 1, 2), new Value("cd"), listener);
+        Assert.assertEquals(0, chunks.getPartialCount());
+        Assert.assertEquals(Arrays.asList("datatype" + NULL + "a 0/2 ab", "datatype" + NULL + "b 0/1 whole", "datatype" + NULL + "a 1/2 cd"), received);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSkippedChunk() {
+        Key documentKey = new Key("20190101_1", "datatype" + NULL + "uid", "FIELDA" + NULL + "value");
+        DocumentChunks chunks = new DocumentChunks();
+        chunks.add(DocumentChunks.chunkKey(documentKey, 0, 3), new Value("ab"));
+        chunks.add(DocumentChunks.chunkKey(documentKey, 2, 3), new Value("ef"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingFirstChunk() {
+        Key documentKey = new Key("20190101_1", "datatype" + NULL + "uid", "FIELDA" + NULL + "value");
+        new DocumentChunks().add(DocumentChunks.chunkKey(documentKey, 1, 2), new Value("cd"));
+    }
+}
@@ -0,0 +1,104 @@
+package org.marc.marcerators;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+public class TestDocumentFetcher {
+
+    private static final String NULL = "\u0000";
+
+    private static String uid(final int document) {
+        return String.format("uid.%010d", document);
+    }
+
+    @Test
+    public void testScansGroupDocumentsByShard() {
+        List<DocumentFetcher.ShardScan> scans = DocumentFetcher.toScans(Arrays.asList(
+                new DocumentFetcher.DocumentId("20200201_2", "dataType", uid(7)),
+                new DocumentFetcher.DocumentId("20200201_1", "dataType", uid(42)),
+                // the same document twice
+                new DocumentFetcher.DocumentId("20200201_1", "dataType", uid(3)),
+                new DocumentFetcher.DocumentId("20200201_1", "dataType", uid(3))), 10);
+
+        Assert.assertEquals(1, scans.size());
+        Assert.assertEquals(Arrays.asList(Range.exact("20200201_1"), Range.exact("20200201_2")), scans.get(0).ranges);
+        Assert.assertEquals(3, scans.get(0).documentCount);
+        Assert.assertEquals("20200201_1" + NULL + "dataType" + NULL + uid(3) + ",20200201_1" + NULL + "dataType" + NULL + uid(42) +
+                ",20200201_2" + NULL + "dataType" + NULL + uid(7), scans.get(0).documentIds.toString());
+    }
+
+    @Test
+    public void testScansSplitAtDocumentsPerScan() {
+        List<DocumentFetcher.DocumentId> ids = new ArrayList<>();
+        for (int document = 0; document < 5; document++) {
+            ids.add(new DocumentFetcher.DocumentId("20200201_1", "dataType", uid(document)));
+        }
+        ids.add(new DocumentFetcher.DocumentId("20200201_2", "dataType", uid(5)));
+
+        List<DocumentFetcher.ShardScan> scans = DocumentFetcher.toScans(ids, 2);
+        Assert.assertEquals(3, scans.size());
+        // the first shard is split across scans, and the last scan finishes it and holds the second
+        Assert.assertEquals(Collections.singletonList(Range.exact("20200201_1")), scans.get(0).ranges);
+        Assert.assertEquals(Collections.singletonList(Range.exact("20200201_1")), scans.get(1).ranges);
+        Assert.assertEquals(Arrays.asList(Range.exact("20200201_1"), Range.exact("20200201_2")), scans.get(2).ranges);
+        Assert.assertEquals("20200201_1" + NULL + "dataType" + NULL + uid(4) + ",20200201_2" + NULL + "dataType" + NULL + uid(5),
+                scans.get(2).documentIds.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCommaInUid() {
+        DocumentFetcher.toScans(Collections.singletonList(new DocumentFetcher.DocumentId("20200201_1", "dataType", "a,b")), 10);
+    }
+
+    @Test
+    public void testShardScanYieldsRequestedDocuments() throws IOException {
+        // a scan handed to the iterator returns only the documents requested of each shard
+        TestFieldIndexMergingIterator data = new TestFieldIndexMergingIterator();
+        Map<String,String> fields = Collections.singletonMap("FIELDA","value");
+        SortedMap<Key,Value> map = new TreeMap<>();
+        for (String shard : Arrays.asList("20200201_1", "20200201_2", "20200201_3")) {
+            for (int document = 0; document < 20; document++) {
+                map.putAll(data.generateData(shard, fields, uid(document), TestFieldIndexMergingIterator.DEFAULT_DATATYPE, Collections.emptyList(), false, 0));
+            }
+        }
+
+        List<DocumentFetcher.ShardScan> scans = DocumentFetcher.toScans(Arrays.asList(
+                new DocumentFetcher.DocumentId("20200201_1", TestFieldIndexMergingIterator.DEFAULT_DATATYPE, uid(4)),
+                new DocumentFetcher.DocumentId("20200201_1", TestFieldIndexMergingIterator.DEFAULT_DATATYPE, uid(17)),
+                new DocumentFetcher.DocumentId("20200201_3", TestFieldIndexMergingIterator.DEFAULT_DATATYPE, uid(5)),
+                // not in the table
+                new DocumentFetcher.DocumentId("20200201_3", TestFieldIndexMergingIterator.DEFAULT_DATATYPE, uid(99))), 10);
+        Assert.assertEquals(1, scans.size());
+
+        List<String> found = new ArrayList<>();
+        for (Range range : scans.get(0).ranges) {
+            SortedKeyValueIterator<Key,Value> iter = data.buildIterator(map,
+                    Collections.singletonMap(FieldIndexMergingIterator.SHARD_DOCUMENT_IDS, scans.get(0).documentIds.toString()));
+            iter.seek(range, Collections.emptyList(), false);
+            while (iter.hasTop()) {
+                found.add(iter.getTopKey().getRow() + "/" + iter.getTopKey().getColumnFamily().toString().split(NULL)[1]);
+                iter.next();
+            }
+        }
+        // each shard only returns its own documents, not those requested of the other
+        Assert.assertEquals(Arrays.asList("20200201_1/" + uid(4), "20200201_1/" + uid(17), "20200201_3/" + uid(5)), found);
+
+        // over the whole table, the shard without requested documents is skipped
+        SortedKeyValueIterator<Key,Value> iter = data.buildIterator(map,
+                Collections.singletonMap(FieldIndexMergingIterator.SHARD_DOCUMENT_IDS, scans.get(0).documentIds.toString()));
+        iter.seek(new Range(), Collections.emptyList(), false);
+        List<String> all = new ArrayList<>();
+        while (iter.hasTop()) {
+            all.add(iter.getTopKey().getRow() + "/" + iter.getTopKey().getColumnFamily().toString().split(NULL)[1]);
+            iter.next();
+        }
+        Assert.assertEquals(found, all);
+    }
+}
@@ -0,0 +1,57 @@
+package org.marc.marcerators;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TestDocumentJsonWriter {
+
+    @Test
+    public void testMatchesObjectMapper() throws IOException {
+        Document doc = new Document();
+        doc.docId = "uid\"1";
+        doc.add("FIELDA","value");
+        doc.add("FIELDB","quoted \"value\" with \\ slash");
+        doc.add("FIELDC","null\u0000inside");
+        doc.add("FIELDD","élève");
+
+        final String expected = new ObjectMapper().writeValueAsString(doc);
+
+        DocumentJsonWriter writer = new DocumentJsonWriter();
+        Assert.assertEquals(expected, writer.toValue(doc).toString());
+        // the buffer is reused across documents
+        Assert.assertEquals(expected, writer.toValue(doc).toString());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Document doc = new Document();
+        doc.docId = "uid";
+        doc.add("FIELDA","value");
+
+        Document read = new ObjectMapper().readValue(new DocumentJsonWriter().toValue(doc).get(), Document.class);
+        Assert.assertEquals(doc.docId, read.docId);
+        Assert.assertEquals(doc.getDocumentFields(), read.getDocumentFields());
+    }
+
+    @Test
+    public void testMultipleValues() throws IOException {
+        Document doc = new Document();
+        doc.docId = "uid";
+        doc.add("FIELDA","value1");
+        doc.add("FIELDB","value");
+        doc.add("FIELDA","value2");
+
+        final String json = new DocumentJsonWriter().toValue(doc).toString();
+        Assert.assertEquals("{\"documentFields\":{\"FIELDA\":[\"value1\",\"value2\"],\"FIELDB\":\"value\"},\"docId\":\"uid\"}", json);
+        Assert.assertEquals(new ObjectMapper().writeValueAsString(doc), json);
+        // every value survives the round trip
+        Document read = new ObjectMapper().readValue(json, Document.class);
+        Assert.assertEquals(3, read.size());
+        Assert.assertEquals(doc.getDocumentFields(), read.getDocumentFields());
+        Assert.assertEquals(Arrays.asList("value1","value2"), read.getAll("FIELDA"));
+    }
+}
@@ -0,0 +1,51 @@
+package org.marc.marcerators;
+
+import com.google.common.base.Ticker;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+public class TestFieldIndexCache {
+
+    private static final byte[] SHARD = "20200201_1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COLUMN_FAMILY = "fi\u0000FIELDA".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COLUMN_QUALIFIER = "value\u0000dataType\u0000uid".getBytes(StandardCharsets.UTF_8);
+
+    private static class ManualTicker extends Ticker {
+        long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+
+    @Test
+    public void testEntriesExpire() {
+        final ManualTicker ticker = new ManualTicker();
+        final FieldIndexCache cache = new FieldIndexCache(1024 * 1024, 60, ticker);
+        cache.put("scope", SHARD, COLUMN_FAMILY, COLUMN_QUALIFIER, false);
+        Assert.assertEquals(Boolean.FALSE, cache.get("scope", SHARD, COLUMN_FAMILY, COLUMN_QUALIFIER));
+
+        // a missing fi key is not trusted forever, should the client keep its generation after ingest
+        ticker.nanos += TimeUnit.SECONDS.toNanos(61);
+        Assert.assertNull(cache.get("scope", SHARD, COLUMN_FAMILY, COLUMN_QUALIFIER));
+    }
+
+    @Test
+    public void testSharedSettingsFixedOnCreation() {
+        final FieldIndexCache shared = FieldIndexCache.getShared(FieldIndexCache.DEFAULT_SIZE, FieldIndexCache.DEFAULT_EXPIRY_SECONDS);
+        // other settings are logged and ignored rather than resizing the cache
+        final FieldIndexCache other = FieldIndexCache.getShared(1, 1);
+        Assert.assertSame(shared, other);
+        Assert.assertEquals(shared.getMaxBytes(), other.getMaxBytes());
+        Assert.assertNotEquals(1, other.getMaxBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSizeValidated() {
+        new FieldIndexCache(0, 60);
+    }
+}
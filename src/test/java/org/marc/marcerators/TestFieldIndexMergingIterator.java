@@ -3,11 +3,13 @@ package org.marc.marcerators;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.accumulo.core.data.*;
 import org.apache.accumulo.core.iterators.*;
+import org.apache.accumulo.core.security.Authorizations;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 public class TestFieldIndexMergingIterator {
@@ -50,13 +52,15 @@ public class TestFieldIndexMergingIterator {
         Document doc = objectMapper.readValue(json,Document.class);
 
         return doc.docId.equals(docId) &&
-                fieldNameAndValues.equals(doc.documentFields);
+                fieldNameAndValues.equals(doc.getDocumentFields());
     }
 
     SortedKeyValueIterator<Key,Value> buildIterator(final SortedMap<Key,Value> map) throws IOException {
-        SortedMapIterator smi = new SortedMapIterator(map);
+        return buildIterator(map, new HashMap<>());
+    }
 
-        Map<String, String> options = new HashMap<>();
+    SortedKeyValueIterator<Key,Value> buildIterator(final SortedMap<Key,Value> map, final Map<String,String> options) throws IOException {
+        SortedMapIterator smi = new SortedMapIterator(map);
 
         FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
 
@@ -113,6 +117,132 @@ public class TestFieldIndexMergingIterator {
         Assert.assertTrue(verifyDocument(fieldNameAndValues,docId,skvi.getTopValue().toString()));
     }
 
+    @Test
+    public void testSharedValues() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        final String docId = UUID.randomUUID().toString();
+
+        SortedMap<Key,Value> data = generateData(fieldNameAndValues,docId);
+        // many other documents share the same field values
+        IntStream.range(0,500).forEach( x -> data.putAll(generateData(fieldNameAndValues,UUID.randomUUID().toString())));
+
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data);
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        Key topKey = new Key(DEFAULT_SHARD,DEFAULT_DATATYPE + NULL + docId);
+        skvi.seek(new Range(topKey,true,topKey.followingKey(PartialKey.ROW_COLFAM),false), sequences, true);
+
+        Assert.assertTrue( skvi.hasTop() );
+        Assert.assertTrue(verifyDocument(fieldNameAndValues,docId,skvi.getTopValue().toString()));
+    }
+
+    @Test
+    public void testUidPrefixDoesNotVerify() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        final String docId = UUID.randomUUID().toString();
+
+        // the document is missing its fi keys, but a document whose uid extends it is not
+        SortedMap<Key,Value> data = generateData(DEFAULT_SHARD,fieldNameAndValues,docId,DEFAULT_DATATYPE,Collections.EMPTY_LIST,true,0);
+        data.putAll(generateData(fieldNameAndValues,docId + ".1"));
+
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data);
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        Key topKey = new Key(DEFAULT_SHARD,DEFAULT_DATATYPE + NULL + docId);
+        skvi.seek(new Range(topKey,true,topKey.followingKey(PartialKey.ROW_COLFAM),false), sequences, true);
+
+        Assert.assertFalse( skvi.hasTop() );
+    }
+
+    @Test
+    public void testValueContainsNull() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","val" + NULL + "ue");
+        fieldNameAndValues.put("FIELDB","value4" + NULL);
+
+        final String docId = UUID.randomUUID().toString();
+
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator( generateData(fieldNameAndValues,docId));
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        Key topKey = new Key(DEFAULT_SHARD,DEFAULT_DATATYPE + NULL + docId);
+        skvi.seek(new Range(topKey,true,topKey.followingKey(PartialKey.ROW_COLFAM),false), sequences, true);
+
+        Assert.assertTrue( skvi.hasTop() );
+        Assert.assertTrue(verifyDocument(fieldNameAndValues,docId,skvi.getTopValue().toString()));
+    }
+
+    @Test
+    public void testBinaryOutput() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        final String docId = UUID.randomUUID().toString();
+
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.OUTPUT_FORMAT,"binary");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator( generateData(fieldNameAndValues,docId),options);
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        Key topKey = new Key(DEFAULT_SHARD,DEFAULT_DATATYPE + NULL + docId);
+        skvi.seek(new Range(topKey,true,topKey.followingKey(PartialKey.ROW_COLFAM),false), sequences, true);
+
+        Assert.assertTrue( skvi.hasTop() );
+        Document doc = DocumentBinaryCodec.decode(skvi.getTopValue());
+        Assert.assertEquals(docId, doc.docId);
+        Assert.assertEquals(fieldNameAndValues, doc.getDocumentFields());
+    }
+
+    @Test
+    public void testMultiValuedField() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        final String docId = UUID.randomUUID().toString();
+
+        SortedMap<Key,Value> data = generateData(fieldNameAndValues,docId);
+        // a second value of FIELDB, sorting before the first
+        data.putAll(generateData(Collections.singletonMap("FIELDB","value1"),docId));
+        // and a second document sharing the field names
+        final String otherDocId = UUID.randomUUID().toString();
+        data.putAll(generateData(fieldNameAndValues,otherDocId));
+
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.OUTPUT_FORMAT,"binary");
+        options.put(FieldIndexMergingIterator.DOCUMENT_SCAN,"true");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,options);
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        skvi.seek(new Range(new Key(DEFAULT_SHARD),true,new Key(DEFAULT_SHARD).followingKey(PartialKey.ROW),false), sequences, true);
+
+        List<Document> docs = new ArrayList<>();
+        while (skvi.hasTop()) {
+            docs.add(DocumentBinaryCodec.decode(skvi.getTopValue()));
+            skvi.next();
+        }
+        Assert.assertEquals(2, docs.size());
+        Document doc = docs.get(0).docId.equals(docId) ? docs.get(0) : docs.get(1);
+        Assert.assertEquals(3, doc.size());
+        Assert.assertEquals(Arrays.asList("value1","value4"), doc.getAll("FIELDB"));
+        Assert.assertEquals("value", doc.get("FIELDA"));
+        // the other document is read into the same, reused Document without keeping its values
+        Document other = docs.get(0) == doc ? docs.get(1) : docs.get(0);
+        Assert.assertEquals(fieldNameAndValues, other.getDocumentFields());
+    }
+
     @Test
     public void testMissingFi() throws IOException {
 
@@ -209,6 +339,370 @@ public class TestFieldIndexMergingIterator {
     }
 
 
+    /**
+     * Counts the deep copies made of the source map and the seeks made on those copies.
+     */
+    static class CountingSortedMapIterator extends SortedMapIterator {
+        private final SortedMap<Key,Value> map;
+        private final AtomicInteger deepCopies;
+        private final AtomicInteger copySeeks;
+        private final boolean isCopy;
+
+        CountingSortedMapIterator(final SortedMap<Key,Value> map, final AtomicInteger deepCopies){
+            this(map, deepCopies, new AtomicInteger(), false);
+        }
+
+        CountingSortedMapIterator(final SortedMap<Key,Value> map, final AtomicInteger deepCopies, final AtomicInteger copySeeks, final boolean isCopy){
+            super(map);
+            this.map = map;
+            this.deepCopies = deepCopies;
+            this.copySeeks = copySeeks;
+            this.isCopy = isCopy;
+        }
+
+        @Override
+        public SortedKeyValueIterator<Key,Value> deepCopy(IteratorEnvironment env){
+            deepCopies.incrementAndGet();
+            return new CountingSortedMapIterator(map, deepCopies, copySeeks, true);
+        }
+
+        @Override
+        public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+            if (isCopy){
+                copySeeks.incrementAndGet();
+            }
+            super.seek(range, columnFamilies, inclusive);
+        }
+    }
+
+    SortedMap<Key,Value> generateDocuments(final Map<String,String> fieldNameAndValues, final int count){
+        SortedMap<Key,Value> data = new TreeMap<>();
+        IntStream.range(0,count).forEach( x -> data.putAll(generateData(fieldNameAndValues,"uid" + x)));
+        return data;
+    }
+
+    List<Document> scanDocuments(final SortedKeyValueIterator<Key,Value> skvi) throws IOException {
+        final ObjectMapper objectMapper = new ObjectMapper();
+        List<Document> docs = new ArrayList<>();
+        while(skvi.hasTop()){
+            docs.add(objectMapper.readValue(skvi.getTopValue().toString(),Document.class));
+            skvi.next();
+        }
+        return docs;
+    }
+
+    Map<String,String> documentScanOptions(){
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.DOCUMENT_SCAN,"true");
+        return options;
+    }
+
+    @Test
+    public void testDocumentScanShard() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        SortedMap<Key,Value> data = new TreeMap<>();
+        data.putAll(generateData(fieldNameAndValues,"uid1"));
+        data.putAll(generateData(DEFAULT_SHARD,fieldNameAndValues,"uid2",DEFAULT_DATATYPE,Collections.EMPTY_LIST,true,0));
+        data.putAll(generateData(fieldNameAndValues,"uid3"));
+
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,documentScanOptions());
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        skvi.seek(new Range(DEFAULT_SHARD), sequences, false);
+
+        List<Document> docs = scanDocuments(skvi);
+        Assert.assertEquals(2, docs.size());
+        Assert.assertEquals("uid1", docs.get(0).docId);
+        Assert.assertEquals("uid3", docs.get(1).docId);
+        Assert.assertEquals(fieldNameAndValues, docs.get(1).getDocumentFields());
+    }
+
+    @Test
+    public void testDocumentScanDataTypePrefix() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+
+        SortedMap<Key,Value> data = new TreeMap<>();
+        data.putAll(generateData(DEFAULT_SHARD,fieldNameAndValues,"uid1","datatypea",Collections.EMPTY_LIST,false,0));
+        data.putAll(generateData(DEFAULT_SHARD,fieldNameAndValues,"uid2","datatypeb",Collections.EMPTY_LIST,false,0));
+        data.putAll(generateData(DEFAULT_SHARD,fieldNameAndValues,"uid3","datatypeb",Collections.EMPTY_LIST,false,0));
+
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,documentScanOptions());
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        skvi.seek(new Range(new Key(DEFAULT_SHARD,"datatypeb" + NULL),true,new Key(DEFAULT_SHARD,"datatypeb\u0001"),false), sequences, false);
+
+        List<Document> docs = scanDocuments(skvi);
+        Assert.assertEquals(2, docs.size());
+        Assert.assertEquals("uid2", docs.get(0).docId);
+        Assert.assertEquals("uid3", docs.get(1).docId);
+    }
+
+    @Test
+    public void testDocumentScanMultipleShards() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        SortedMap<Key,Value> data = new TreeMap<>();
+        data.putAll(generateData("20200201_1",fieldNameAndValues,"uid1",DEFAULT_DATATYPE,Collections.EMPTY_LIST,false,0));
+        data.putAll(generateData("20200201_2",fieldNameAndValues,"uid2",DEFAULT_DATATYPE,Collections.EMPTY_LIST,false,0));
+        data.putAll(generateData("20200201_3",fieldNameAndValues,"uid3",DEFAULT_DATATYPE,Collections.EMPTY_LIST,true,0));
+        data.putAll(generateData("20200201_4",fieldNameAndValues,"uid4",DEFAULT_DATATYPE,Collections.EMPTY_LIST,false,0));
+
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,documentScanOptions());
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        skvi.seek(new Range(), sequences, false);
+
+        List<Document> docs = scanDocuments(skvi);
+        Assert.assertEquals(3, docs.size());
+        Assert.assertEquals("uid1", docs.get(0).docId);
+        Assert.assertEquals("uid2", docs.get(1).docId);
+        Assert.assertEquals("uid4", docs.get(2).docId);
+    }
+
+    @Test
+    public void testDocumentScanResume() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        SortedMap<Key,Value> data = new TreeMap<>();
+        data.putAll(generateData(fieldNameAndValues,"uid1"));
+        data.putAll(generateData(fieldNameAndValues,"uid2"));
+
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,documentScanOptions());
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        final Range shardRange = new Range(DEFAULT_SHARD);
+        skvi.seek(shardRange, sequences, false);
+
+        Assert.assertTrue( skvi.hasTop() );
+        final Key lastReturned = skvi.getTopKey();
+
+        // resume the way a tablet server would, just after the last key returned
+        skvi.seek(new Range(lastReturned,false,shardRange.getEndKey(),shardRange.isEndKeyInclusive()), sequences, false);
+
+        List<Document> docs = scanDocuments(skvi);
+        Assert.assertEquals(1, docs.size());
+        Assert.assertEquals("uid2", docs.get(0).docId);
+    }
+
+    @Test
+    public void testDeepCopiesReused() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+        fieldNameAndValues.put("FIELDC","value3");
+        fieldNameAndValues.put("FIELDD","value2");
+
+        final AtomicInteger deepCopies = new AtomicInteger();
+        FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(generateDocuments(fieldNameAndValues,10),deepCopies), documentScanOptions(), new MockIteratorEnvironment());
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        iter.seek(new Range(DEFAULT_SHARD), sequences, false);
+        Assert.assertEquals(10, scanDocuments(iter).size());
+
+        iter.seek(new Range(DEFAULT_SHARD), sequences, false);
+        Assert.assertEquals(10, scanDocuments(iter).size());
+
+        // one copy per field, re-sought for every document and every seek
+        Assert.assertEquals(fieldNameAndValues.size(), deepCopies.get());
+    }
+
+    @Test
+    public void testFailFastOrdering() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+        fieldNameAndValues.put("FIELDC","value3");
+        fieldNameAndValues.put("FIELDD","value2");
+
+        SortedMap<Key,Value> data = generateDocuments(fieldNameAndValues,20);
+        // FIELDD is never indexed
+        data.keySet().removeIf( key -> key.getColumnFamily().toString().equals("fi" + NULL + "FIELDD"));
+
+        final AtomicInteger deepCopies = new AtomicInteger();
+        final AtomicInteger fiSeeks = new AtomicInteger();
+        FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,deepCopies,fiSeeks,false), documentScanOptions(), new MockIteratorEnvironment());
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        iter.seek(new Range(DEFAULT_SHARD), sequences, false);
+        Assert.assertEquals(0, scanDocuments(iter).size());
+
+        // the first document checks every field, after that FIELDD is checked first and rejects on one seek
+        Assert.assertEquals(fieldNameAndValues.size() + 19, fiSeeks.get());
+    }
+
+    @Test
+    public void testSweepVerification() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+        fieldNameAndValues.put("FIELDC","value3");
+        fieldNameAndValues.put("FIELDD","value2");
+
+        SortedMap<Key,Value> data = generateDocuments(fieldNameAndValues,10);
+        data.putAll(generateData(DEFAULT_SHARD,fieldNameAndValues,"uid5a",DEFAULT_DATATYPE,Collections.EMPTY_LIST,true,5));
+
+        final AtomicInteger deepCopies = new AtomicInteger();
+        Map<String,String> options = documentScanOptions();
+        options.put(FieldIndexMergingIterator.VERIFY_MODE,"sweep");
+        FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,deepCopies), options, new MockIteratorEnvironment());
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        iter.seek(new Range(DEFAULT_SHARD), sequences, false);
+
+        List<Document> docs = scanDocuments(iter);
+        Assert.assertEquals(10, docs.size());
+        docs.forEach( doc -> Assert.assertEquals(fieldNameAndValues, doc.getDocumentFields()));
+        Assert.assertEquals(1, deepCopies.get());
+    }
+
+    @Test
+    public void testBatchVerification() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+        fieldNameAndValues.put("FIELDC","value3");
+
+        SortedMap<Key,Value> data = new TreeMap<>();
+        List<String> expected = new ArrayList<>();
+        IntStream.range(0,100).forEach( x -> {
+            final String docId = String.format("uid%03d", x);
+            // every seventh document is missing its fi keys
+            final boolean missing = x % 7 == 0;
+            data.putAll(generateData(DEFAULT_SHARD,fieldNameAndValues,docId,DEFAULT_DATATYPE,Collections.EMPTY_LIST,missing,2));
+            if (!missing)
+                expected.add(docId);
+        });
+
+        final AtomicInteger deepCopies = new AtomicInteger();
+        Map<String,String> options = documentScanOptions();
+        options.put(FieldIndexMergingIterator.BATCH_SIZE,"30");
+        FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,deepCopies), options, new MockIteratorEnvironment());
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        iter.seek(new Range(DEFAULT_SHARD), sequences, false);
+
+        List<Document> docs = scanDocuments(iter);
+        Assert.assertEquals(expected.size(), docs.size());
+        IntStream.range(0,docs.size()).forEach( x -> {
+            Assert.assertEquals(expected.get(x), docs.get(x).docId);
+            Assert.assertEquals(fieldNameAndValues, docs.get(x).getDocumentFields());
+        });
+        // one source sweeps every batch
+        Assert.assertEquals(1, deepCopies.get());
+    }
+
+    @Test
+    public void testBatchAcrossShards() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        SortedMap<Key,Value> data = new TreeMap<>();
+        IntStream.range(0,5).forEach( x -> {
+            data.putAll(generateData("20200201_1",fieldNameAndValues,"uid" + x,DEFAULT_DATATYPE,Collections.EMPTY_LIST,false,0));
+            data.putAll(generateData("20200201_2",fieldNameAndValues,"uid" + x,DEFAULT_DATATYPE,Collections.EMPTY_LIST,x == 3,0));
+        });
+
+        Map<String,String> options = documentScanOptions();
+        options.put(FieldIndexMergingIterator.BATCH_SIZE,"4");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,options);
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        skvi.seek(new Range(), sequences, false);
+
+        List<String> rows = new ArrayList<>();
+        while(skvi.hasTop()){
+            rows.add(skvi.getTopKey().getRow().toString());
+            skvi.next();
+        }
+        Assert.assertEquals(9, rows.size());
+        Assert.assertEquals(5, rows.stream().filter( row -> row.equals("20200201_1")).count());
+    }
+
+    @Test
+    public void testDocumentIds() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        SortedMap<Key,Value> data = generateDocuments(fieldNameAndValues,50);
+        data.putAll(generateData(DEFAULT_SHARD,fieldNameAndValues,"uid7a",DEFAULT_DATATYPE,Collections.EMPTY_LIST,true,0));
+        data.putAll(generateData("20200201_2",fieldNameAndValues,"uid12",DEFAULT_DATATYPE,Collections.EMPTY_LIST,false,0));
+
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.DOCUMENT_IDS,
+                DEFAULT_DATATYPE + NULL + "uid12," + DEFAULT_DATATYPE + NULL + "uid7a," + DEFAULT_DATATYPE + NULL + "uid3," + DEFAULT_DATATYPE + NULL + "nouid");
+        options.put(FieldIndexMergingIterator.BATCH_SIZE,"10");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,options);
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        skvi.seek(new Range(), sequences, false);
+
+        List<String> found = new ArrayList<>();
+        while(skvi.hasTop()){
+            found.add(skvi.getTopKey().getRow() + "/" + skvi.getTopKey().getColumnFamily().toString().split(NULL)[1]);
+            skvi.next();
+        }
+        Assert.assertEquals(Arrays.asList(DEFAULT_SHARD + "/uid12", DEFAULT_SHARD + "/uid3", "20200201_2/uid12"), found);
+    }
+
+    @Test
+    public void testDeepCopyCap() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+        fieldNameAndValues.put("FIELDC","value3");
+        fieldNameAndValues.put("FIELDD","value2");
+
+        Map<String,String> options = documentScanOptions();
+        options.put(FieldIndexMergingIterator.MAX_DEEP_COPIES,"2");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(generateDocuments(fieldNameAndValues,10),options);
+
+        Collection<ByteSequence> sequences = Collections.emptyList();
+        skvi.seek(new Range(DEFAULT_SHARD), sequences, false);
+
+        List<Document> docs = scanDocuments(skvi);
+        Assert.assertEquals(10, docs.size());
+        docs.forEach( doc -> Assert.assertEquals(fieldNameAndValues, doc.getDocumentFields()));
+    }
+
+    @Test
+    public void testMaxDeepCopiesValidated() throws IOException {
+        for (final String maxDeepCopies : Arrays.asList("0", "-1")) {
+            final Map<String,String> options = new HashMap<>();
+            options.put(FieldIndexMergingIterator.MAX_DEEP_COPIES, maxDeepCopies);
+            try {
+                buildIterator(new TreeMap<>(), options);
+                Assert.fail(maxDeepCopies + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
     @Test
     public void testFindDocOnlySkipped() throws IOException {
 
@@ -243,5 +737,451 @@ public class TestFieldIndexMergingIterator {
         Assert.assertFalse( skvi.hasTop() );
     }
 
-}
+    @Test
+    public void testVerifyCache() throws IOException {
 
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+        fieldNameAndValues.put("FIELDC","value3");
+
+        SortedMap<Key,Value> data = generateDocuments(fieldNameAndValues,10);
+        // uid3 is missing an fi key, which is cached as well
+        data.remove(new Key(DEFAULT_SHARD,"fi" + NULL + "FIELDB","value4" + NULL + DEFAULT_DATATYPE + NULL + "uid3"));
+
+        final String generation = UUID.randomUUID().toString();
+        final Map<String,String> options = documentScanOptions();
+        options.put(FieldIndexMergingIterator.VERIFY_CACHE_GENERATION, generation);
+
+        final AtomicInteger fiSeeks = new AtomicInteger();
+        FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,new AtomicInteger(),fiSeeks,false), options, new MockIteratorEnvironment());
+        iter.seek(new Range(DEFAULT_SHARD), Collections.emptyList(), false);
+        Assert.assertEquals(9, scanDocuments(iter).size());
+        Assert.assertTrue(fiSeeks.get() > 0);
+
+        // another iterator in the same generation answers from the cache
+        fiSeeks.set(0);
+        iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,new AtomicInteger(),fiSeeks,false), options, new MockIteratorEnvironment());
+        iter.seek(new Range(DEFAULT_SHARD), Collections.emptyList(), false);
+        Assert.assertEquals(9, scanDocuments(iter).size());
+        Assert.assertEquals(0, fiSeeks.get());
+
+        // a new generation sees the fi key that has since been written
+        data.put(new Key(DEFAULT_SHARD,"fi" + NULL + "FIELDB","value4" + NULL + DEFAULT_DATATYPE + NULL + "uid3"), new Value());
+        options.put(FieldIndexMergingIterator.VERIFY_CACHE_GENERATION, generation + "2");
+        iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,new AtomicInteger(),fiSeeks,false), options, new MockIteratorEnvironment());
+        iter.seek(new Range(DEFAULT_SHARD), Collections.emptyList(), false);
+        Assert.assertEquals(10, scanDocuments(iter).size());
+        Assert.assertTrue(fiSeeks.get() > 0);
+    }
+
+    @Test
+    public void testVerifyCacheAuthorizations() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        SortedMap<Key,Value> data = generateDocuments(fieldNameAndValues,5);
+
+        final Map<String,String> options = documentScanOptions();
+        options.put(FieldIndexMergingIterator.VERIFY_CACHE_GENERATION, UUID.randomUUID().toString());
+
+        final AtomicInteger fiSeeks = new AtomicInteger();
+        FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,new AtomicInteger(),fiSeeks,false), options, new MockIteratorEnvironment(new Authorizations("A","B")));
+        iter.seek(new Range(DEFAULT_SHARD), Collections.emptyList(), false);
+        Assert.assertEquals(5, scanDocuments(iter).size());
+        Assert.assertTrue(fiSeeks.get() > 0);
+
+        // the same authorizations, in another order, answer from the cache
+        fiSeeks.set(0);
+        iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,new AtomicInteger(),fiSeeks,false), options, new MockIteratorEnvironment(new Authorizations("B","A")));
+        iter.seek(new Range(DEFAULT_SHARD), Collections.emptyList(), false);
+        Assert.assertEquals(5, scanDocuments(iter).size());
+        Assert.assertEquals(0, fiSeeks.get());
+
+        // fewer authorizations in the same generation verify for themselves
+        iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,new AtomicInteger(),fiSeeks,false), options, new MockIteratorEnvironment(new Authorizations("A")));
+        iter.seek(new Range(DEFAULT_SHARD), Collections.emptyList(), false);
+        Assert.assertEquals(5, scanDocuments(iter).size());
+        Assert.assertTrue(fiSeeks.get() > 0);
+    }
+
+    @Test
+    public void testReturnAndVerifyFields() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+        fieldNameAndValues.put("FIELDC","value3");
+        fieldNameAndValues.put("FIELDD","value2");
+
+        final String docId = UUID.randomUUID().toString();
+        SortedMap<Key,Value> data = generateData(fieldNameAndValues,docId);
+        // FIELDD is never indexed, which only matters if it is verified
+        data.keySet().removeIf( key -> key.getColumnFamily().toString().equals("fi" + NULL + "FIELDD"));
+
+        Key topKey = new Key(DEFAULT_SHARD,DEFAULT_DATATYPE + NULL + docId);
+        Range range = new Range(topKey,true,topKey.followingKey(PartialKey.ROW_COLFAM),false);
+
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.RETURN_FIELDS,"FIELDA,FIELDC");
+        options.put(FieldIndexMergingIterator.VERIFY_FIELDS,"FIELDA,FIELDB");
+        final AtomicInteger fiSeeks = new AtomicInteger();
+        FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        iter.init(new CountingSortedMapIterator(data,new AtomicInteger(),fiSeeks,false), options, new MockIteratorEnvironment());
+        iter.seek(range, Collections.emptyList(), false);
+
+        Assert.assertTrue( iter.hasTop() );
+        Map<String,String> returned = new HashMap<>();
+        returned.put("FIELDA","value");
+        returned.put("FIELDC","value3");
+        Assert.assertTrue(verifyDocument(returned,docId,iter.getTopValue().toString()));
+        Assert.assertEquals(2, fiSeeks.get());
+
+        // verifying FIELDD finds its fi key missing
+        options.put(FieldIndexMergingIterator.VERIFY_FIELDS,"FIELDD");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data, options);
+        skvi.seek(range, Collections.emptyList(), false);
+        Assert.assertFalse( skvi.hasTop() );
+    }
+
+    @Test
+    public void testChunkedOutput() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        StringBuilder longValue = new StringBuilder();
+        IntStream.range(0,300).forEach( x -> longValue.append("long"));
+        fieldNameAndValues.put("FIELDA",longValue.toString());
+        fieldNameAndValues.put("FIELDB","value4");
+
+        // the large document sorts first
+        final String docId = "0" + UUID.randomUUID().toString();
+        final String smallDocId = "1" + UUID.randomUUID().toString();
+        SortedMap<Key,Value> data = generateData(fieldNameAndValues,docId);
+        data.putAll(generateData(Collections.singletonMap("FIELDB","value4"),smallDocId));
+
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.DOCUMENT_SCAN,"true");
+        options.put(FieldIndexMergingIterator.CHUNK_SIZE,"100");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,options);
+
+        final Range shardRange = new Range(new Key(DEFAULT_SHARD),true,new Key(DEFAULT_SHARD).followingKey(PartialKey.ROW),false);
+        skvi.seek(shardRange, Collections.emptyList(), false);
+
+        List<Key> keys = new ArrayList<>();
+        List<Value> wholeValues = new ArrayList<>();
+        DocumentChunks chunks = new DocumentChunks();
+        while (skvi.hasTop()) {
+            keys.add(skvi.getTopKey());
+            Assert.assertTrue(skvi.getTopValue().getSize() <= 100);
+            Value whole = chunks.add(skvi.getTopKey(), skvi.getTopValue());
+            if (null != whole) {
+                wholeValues.add(whole);
+            }
+            skvi.next();
+        }
+        Assert.assertEquals(0, chunks.getPartialCount());
+        Assert.assertEquals(2, wholeValues.size());
+        // keys are returned in sorted order
+        List<Key> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted);
+        Assert.assertEquals(sorted, keys);
+
+        final Key firstChunk = keys.get(0);
+        Assert.assertTrue(DocumentChunks.isChunk(firstChunk));
+        Assert.assertEquals(0, DocumentChunks.getIndex(firstChunk));
+        final int count = DocumentChunks.getCount(firstChunk);
+        Assert.assertTrue(count > 1);
+        Assert.assertEquals(count + 1, keys.size());
+        Assert.assertFalse(DocumentChunks.isChunk(keys.get(count)));
+
+        // the reassembled document matches the one returned whole
+        SortedKeyValueIterator<Key,Value> whole = buildIterator(data,Collections.singletonMap(FieldIndexMergingIterator.DOCUMENT_SCAN,"true"));
+        whole.seek(shardRange, Collections.emptyList(), false);
+        Assert.assertEquals(whole.getTopKey(), DocumentChunks.getDocumentKey(firstChunk));
+        Assert.assertEquals(whole.getTopValue(), wholeValues.get(0));
+        Assert.assertTrue(verifyDocument(fieldNameAndValues,docId,wholeValues.get(0).toString()));
+
+        // resuming after the second chunk continues with the third
+        skvi.seek(new Range(keys.get(1),false,shardRange.getEndKey(),false), Collections.emptyList(), false);
+        for (int i = 2; i <= count; i++) {
+            Assert.assertTrue(skvi.hasTop());
+            Assert.assertEquals(keys.get(i), skvi.getTopKey());
+            skvi.next();
+        }
+        Assert.assertFalse(skvi.hasTop());
+    }
+
+    @Test
+    public void testMaxDocumentSize() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        StringBuilder longValue = new StringBuilder();
+        IntStream.range(0,300).forEach( x -> longValue.append("long"));
+        fieldNameAndValues.put("FIELDA",longValue.toString());
+        final String docId = UUID.randomUUID().toString();
+
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.DOCUMENT_SCAN,"true");
+        options.put(FieldIndexMergingIterator.CHUNK_SIZE,"100");
+        options.put(FieldIndexMergingIterator.MAX_DOCUMENT_SIZE,"1000");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(generateData(fieldNameAndValues,docId),options);
+
+        final Range shardRange = new Range(new Key(DEFAULT_SHARD),true,new Key(DEFAULT_SHARD).followingKey(PartialKey.ROW),false);
+        try {
+            skvi.seek(shardRange, Collections.emptyList(), false);
+            Assert.fail("the document is larger than " + FieldIndexMergingIterator.MAX_DOCUMENT_SIZE);
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains(docId));
+        }
+
+        // the cap also applies to the serialized value
+        options.put(FieldIndexMergingIterator.MAX_DOCUMENT_SIZE,"1220");
+        skvi = buildIterator(generateData(fieldNameAndValues,docId),options);
+        try {
+            skvi.seek(shardRange, Collections.emptyList(), false);
+            Assert.fail("the serialized document is larger than " + FieldIndexMergingIterator.MAX_DOCUMENT_SIZE);
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains(docId));
+        }
+
+        options.put(FieldIndexMergingIterator.MAX_DOCUMENT_SIZE,"2000");
+        skvi = buildIterator(generateData(fieldNameAndValues,docId),options);
+        skvi.seek(shardRange, Collections.emptyList(), false);
+        Assert.assertTrue(DocumentChunks.isChunk(skvi.getTopKey()));
+    }
+
+    @Test
+    public void testYieldOnFiSeekBudget() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        SortedMap<Key,Value> data = new TreeMap<>();
+        List<String> docIds = new ArrayList<>();
+        IntStream.range(0,10).forEach( x -> {
+            final String docId = UUID.randomUUID().toString();
+            docIds.add(DEFAULT_DATATYPE + NULL + docId);
+            data.putAll(generateData(fieldNameAndValues,docId));
+        });
+        Collections.sort(docIds);
+
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.DOCUMENT_SCAN,"true");
+        // each document takes two fi seeks
+        options.put(FieldIndexMergingIterator.MAX_FI_SEEKS,"3");
+        FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        iter.init(new SortedMapIterator(data), options, new MockIteratorEnvironment());
+        YieldCallback<Key> callback = new YieldCallback<>();
+        iter.enableYielding(callback);
+
+        final Key end = new Key(DEFAULT_SHARD).followingKey(PartialKey.ROW);
+        Range range = new Range(new Key(DEFAULT_SHARD),true,end,false);
+        List<String> found = new ArrayList<>();
+        Key lastReturned = null;
+        int yields = 0;
+        while (null != range) {
+            iter.seek(range, Collections.emptyList(), false);
+            while (iter.hasTop()) {
+                lastReturned = iter.getTopKey();
+                found.add(lastReturned.getColumnFamily().toString());
+                iter.next();
+            }
+            range = null;
+            if (callback.hasYielded()) {
+                yields++;
+                final Key position = callback.getPositionAndReset();
+                Assert.assertTrue(position.compareTo(lastReturned) > 0);
+                range = new Range(position,false,end,false);
+            }
+        }
+        Assert.assertEquals(docIds, found);
+        Assert.assertEquals(4, yields);
+    }
+
+    @Test
+    public void testDocumentReadBeforeYield() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+
+        SortedMap<Key,Value> data = new TreeMap<>();
+        List<String> docIds = new ArrayList<>();
+        IntStream.range(0,5).forEach( x -> {
+            final String docId = UUID.randomUUID().toString();
+            docIds.add(DEFAULT_DATATYPE + NULL + docId);
+            data.putAll(generateData(fieldNameAndValues,docId));
+        });
+        Collections.sort(docIds);
+
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.DOCUMENT_SCAN,"true");
+        options.put(FieldIndexMergingIterator.MAX_MILLIS_PER_SCAN,"1");
+        FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        // every seek spends the time budget before the first document is read
+        iter.init(new SortedMapIterator(data) {
+            @Override
+            public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.seek(range, columnFamilies, inclusive);
+            }
+        }, options, new MockIteratorEnvironment());
+        YieldCallback<Key> callback = new YieldCallback<>();
+        iter.enableYielding(callback);
+
+        final Key end = new Key(DEFAULT_SHARD).followingKey(PartialKey.ROW);
+        Range range = new Range(new Key(DEFAULT_SHARD),true,end,false);
+        List<String> found = new ArrayList<>();
+        int yields = 0;
+        while (null != range) {
+            iter.seek(range, Collections.emptyList(), false);
+            Assert.assertTrue(iter.hasTop());
+            final Key lastReturned = iter.getTopKey();
+            found.add(lastReturned.getColumnFamily().toString());
+            iter.next();
+            Assert.assertFalse(iter.hasTop());
+            range = null;
+            if (callback.hasYielded()) {
+                yields++;
+                final Key position = callback.getPositionAndReset();
+                Assert.assertTrue(position.compareTo(lastReturned) > 0);
+                range = new Range(position,false,end,false);
+            }
+        }
+        Assert.assertEquals(docIds, found);
+        Assert.assertEquals(4, yields);
+    }
+
+    @Test
+    public void testEmitStats() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+        fieldNameAndValues.put("LOAD_DATE","value3");
+
+        SortedMap<Key,Value> data = new TreeMap<>();
+        IntStream.range(0,2).forEach( x -> data.putAll(generateData(fieldNameAndValues,UUID.randomUUID().toString())));
+        // every fi key of this document is missing
+        data.putAll(generateData(DEFAULT_SHARD,fieldNameAndValues,UUID.randomUUID().toString(),DEFAULT_DATATYPE,Collections.EMPTY_LIST,true,0));
+
+        Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexMergingIterator.DOCUMENT_SCAN,"true");
+        options.put(FieldIndexMergingIterator.EMIT_STATS,"true");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,options);
+
+        final FieldIndexMetricsRegistry registry = FieldIndexMetricsRegistry.getInstance();
+        final long verifiedBefore = registry.get(ScanMetrics.Counter.DOCUMENTS_VERIFIED);
+
+        skvi.seek(new Range(new Key(DEFAULT_SHARD),true,new Key(DEFAULT_SHARD).followingKey(PartialKey.ROW),false), Collections.emptyList(), false);
+        List<Key> keys = new ArrayList<>();
+        List<Value> values = new ArrayList<>();
+        while (skvi.hasTop()) {
+            keys.add(skvi.getTopKey());
+            values.add(skvi.getTopValue());
+            skvi.next();
+        }
+        Assert.assertEquals(3, keys.size());
+        Assert.assertFalse(ScanMetrics.isStatsKey(keys.get(0)));
+        Assert.assertTrue(ScanMetrics.isStatsKey(keys.get(2)));
+        Assert.assertTrue(keys.get(1).compareTo(keys.get(2)) < 0);
+
+        ScanMetrics stats = ScanMetrics.fromValue(values.get(2));
+        Assert.assertEquals(9, stats.get(ScanMetrics.Counter.EVENT_KEYS_READ));
+        Assert.assertEquals(3, stats.get(ScanMetrics.Counter.FIELDS_SKIPPED));
+        Assert.assertEquals(2, stats.get(ScanMetrics.Counter.DOCUMENTS_VERIFIED));
+        Assert.assertEquals(1, stats.get(ScanMetrics.Counter.DOCUMENTS_REJECTED));
+        Assert.assertEquals(values.get(0).getSize() + values.get(1).getSize(), stats.get(ScanMetrics.Counter.SERIALIZED_BYTES));
+        Assert.assertTrue(stats.get(ScanMetrics.Counter.FI_SEEKS) >= 5);
+        Assert.assertTrue(stats.get(ScanMetrics.Counter.DEEP_COPIES_CREATED) > 0);
+        Assert.assertTrue(stats.get(ScanMetrics.Counter.FIND_TOP_NANOS) > 0);
+
+        // the tablet server wide registry includes the scan
+        Assert.assertEquals(verifiedBefore + 2, registry.get(ScanMetrics.Counter.DOCUMENTS_VERIFIED));
+    }
+
+    @Test
+    public void testProfile() throws IOException {
+
+        Map<String,String> fieldNameAndValues = new HashMap<>();
+        fieldNameAndValues.put("FIELDA","value");
+        fieldNameAndValues.put("FIELDB","value4");
+        fieldNameAndValues.put("LOAD_DATE","value3");
+
+        SortedMap<Key,Value> data = generateDocuments(fieldNameAndValues, 2);
+        // the second document is rejected for its missing FIELDB fi key
+        data.remove(new Key(DEFAULT_SHARD, "fi" + NULL + "FIELDB", "value4" + NULL + DEFAULT_DATATYPE + NULL + "uid1"));
+
+        Map<String,String> options = documentScanOptions();
+        options.put(FieldIndexMergingIterator.PROFILE,"true");
+        SortedKeyValueIterator<Key,Value> skvi = buildIterator(data,options);
+
+        final Range shardRange = new Range(new Key(DEFAULT_SHARD),true,new Key(DEFAULT_SHARD).followingKey(PartialKey.ROW),false);
+        skvi.seek(shardRange, Collections.emptyList(), false);
+        List<Key> keys = new ArrayList<>();
+        List<Value> values = new ArrayList<>();
+        while (skvi.hasTop()) {
+            keys.add(skvi.getTopKey());
+            values.add(skvi.getTopValue());
+            skvi.next();
+        }
+        Assert.assertEquals(3, keys.size());
+        Assert.assertFalse(DocumentProfile.isProfileKey(keys.get(0)));
+        Map<String,String> returned = new HashMap<>(fieldNameAndValues);
+        returned.remove("LOAD_DATE");
+        Assert.assertTrue(verifyDocument(returned, "uid0", values.get(0).toString()));
+        Assert.assertTrue(DocumentProfile.isProfileKey(keys.get(1)));
+        Assert.assertTrue(DocumentProfile.isProfileKey(keys.get(2)));
+        Assert.assertTrue(keys.get(0).compareTo(keys.get(1)) < 0);
+        Assert.assertTrue(keys.get(1).compareTo(keys.get(2)) < 0);
+
+        final ObjectMapper objectMapper = new ObjectMapper();
+        Map<?,?> verified = objectMapper.readValue(values.get(1).get(), Map.class);
+        Assert.assertEquals("uid0", verified.get("docId"));
+        Assert.assertEquals(true, verified.get("verified"));
+        Assert.assertNull(verified.get("failedField"));
+        List<?> checks = (List<?>) verified.get("checks");
+        Assert.assertEquals(2, checks.size());
+        for (Object check : checks) {
+            Assert.assertEquals("found", ((Map<?,?>) check).get("result"));
+            Assert.assertEquals(1, ((Number) ((Map<?,?>) check).get("keysScanned")).intValue());
+        }
+
+        Map<?,?> rejected = objectMapper.readValue(values.get(2).get(), Map.class);
+        Assert.assertEquals("uid1", rejected.get("docId"));
+        Assert.assertEquals(false, rejected.get("verified"));
+        Assert.assertEquals("FIELDB", rejected.get("failedField"));
+        boolean missing = false;
+        for (Object check : (List<?>) rejected.get("checks")) {
+            if ("FIELDB".equals(((Map<?,?>) check).get("field"))) {
+                Assert.assertEquals("value4", ((Map<?,?>) check).get("value"));
+                Assert.assertEquals("missing", ((Map<?,?>) check).get("result"));
+                missing = true;
+            }
+        }
+        Assert.assertTrue(missing);
+
+        // a scan resumed after the first document returns its profile before the second document's
+        skvi.seek(new Range(keys.get(0),false,shardRange.getEndKey(),false), Collections.emptyList(), false);
+        Assert.assertTrue(skvi.hasTop());
+        Assert.assertEquals(keys.get(1), skvi.getTopKey());
+        skvi.next();
+        Assert.assertEquals(keys.get(2), skvi.getTopKey());
+        skvi.next();
+        Assert.assertFalse(skvi.hasTop());
+    }
+
+}
@@ -0,0 +1,253 @@
+package org.marc.marcerators;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.accumulo.core.data.*;
+import org.apache.accumulo.core.iterators.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+public class TestFieldIndexQueryIterator {
+
+    public static final String NULL = "\u0000";
+    public static final String DATATYPE = "dataType";
+
+    static void addDocument(final SortedMap<Key,Value> map, final String shard, final String uid, final String... fieldsAndValues) {
+        for (int i = 0; i < fieldsAndValues.length; i += 2) {
+            map.put(new Key(shard, DATATYPE + NULL + uid, fieldsAndValues[i] + NULL + fieldsAndValues[i + 1]), new Value());
+            map.put(new Key(shard, "fi" + NULL + fieldsAndValues[i], fieldsAndValues[i + 1] + NULL + DATATYPE + NULL + uid), new Value());
+        }
+    }
+
+    static SortedMap<Key,Value> generateShard(final String shard) {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        addDocument(map, shard, "uid1", "COLOR", "red", "SHAPE", "circle", "SIZE", "small");
+        addDocument(map, shard, "uid2", "COLOR", "blue", "SHAPE", "circle", "SIZE", "large");
+        addDocument(map, shard, "uid3", "COLOR", "red", "SHAPE", "square", "SIZE", "large");
+        addDocument(map, shard, "uid4", "COLOR", "green", "SHAPE", "circle", "SIZE", "small");
+        addDocument(map, shard, "uid5", "COLOR", "red", "SHAPE", "circle", "SIZE", "large");
+        return map;
+    }
+
+    static FieldIndexQueryIterator buildIterator(final SortedMap<Key,Value> map, final String query) throws IOException {
+        final Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexQueryIterator.QUERY, query);
+        final FieldIndexQueryIterator iter = new FieldIndexQueryIterator();
+        iter.init(new SortedMapIterator(map), options, new MockIteratorEnvironment());
+        return iter;
+    }
+
+    static List<String> scan(final SortedMap<Key,Value> map, final String query, final Range range) throws IOException {
+        final FieldIndexQueryIterator iter = buildIterator(map, query);
+        iter.seek(range, Collections.EMPTY_LIST, false);
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final List<String> docIds = new ArrayList<>();
+        while (iter.hasTop()) {
+            final Document doc = objectMapper.readValue(iter.getTopValue().get(), Document.class);
+            docIds.add(iter.getTopKey().getRow() + "/" + doc.docId);
+            iter.next();
+        }
+        return docIds;
+    }
+
+    static List<String> scan(final String query) throws IOException {
+        final List<String> uids = new ArrayList<>();
+        for (String docId : scan(generateShard("20200201_1"), query, new Range("20200201_1"))) {
+            uids.add(docId.substring(docId.indexOf('/') + 1));
+        }
+        return uids;
+    }
+
+    @Test
+    public void testTerm() throws IOException {
+        Assert.assertEquals(Arrays.asList("uid1", "uid3", "uid5"), scan("COLOR == 'red'"));
+        Assert.assertEquals(Collections.EMPTY_LIST, scan("COLOR == 'purple'"));
+    }
+
+    @Test
+    public void testAnd() throws IOException {
+        Assert.assertEquals(Arrays.asList("uid1", "uid5"), scan("COLOR == 'red' && SHAPE == 'circle'"));
+        Assert.assertEquals(Collections.singletonList("uid5"), scan("COLOR == 'red' && SHAPE == 'circle' && SIZE == 'large'"));
+        Assert.assertEquals(Collections.EMPTY_LIST, scan("COLOR == 'green' && SIZE == 'large'"));
+    }
+
+    @Test
+    public void testOr() throws IOException {
+        Assert.assertEquals(Arrays.asList("uid2", "uid3", "uid4"), scan("COLOR == 'blue' || COLOR == 'green' || SHAPE == 'square'"));
+        // documents matching several terms appear once
+        Assert.assertEquals(Arrays.asList("uid1", "uid2", "uid3", "uid5"), scan("COLOR == 'red' || SIZE == 'large'"));
+    }
+
+    @Test
+    public void testNot() throws IOException {
+        Assert.assertEquals(Arrays.asList("uid2", "uid4"), scan("SHAPE == 'circle' && !COLOR == 'red'"));
+        Assert.assertEquals(Arrays.asList("uid1", "uid3", "uid4"),
+                scan("(COLOR == 'red' && !(SHAPE == 'circle' && SIZE == 'large')) || COLOR == 'green'"));
+    }
+
+    @Test
+    public void testNegationWithinOr() throws IOException {
+        // a disjunction holding a negation filters the documents of the term it is joined to
+        Assert.assertEquals(Arrays.asList("uid1", "uid5"), scan("COLOR == 'red' && (SHAPE == 'circle' || !SIZE == 'large')"));
+        Assert.assertEquals(Arrays.asList("uid1", "uid3"), scan("COLOR == 'red' && (SHAPE == 'square' || !SIZE == 'large')"));
+        Assert.assertEquals(Arrays.asList("uid2", "uid4"), scan("SHAPE == 'circle' && (COLOR == 'blue' || !(COLOR == 'red' || SIZE == 'large'))"));
+        // the example of QueryParser
+        Assert.assertEquals("(FIELDA == 'value' && (FIELDB == 'other' || !(FIELDC == 'x')))",
+                QueryParser.parse("FIELDA == 'value' && ( FIELDB == 'other' || !( FIELDC == 'x' ) )").toString());
+    }
+
+    @Test
+    public void testUnboundedQueriesRejected() {
+        for (String query : Arrays.asList("!COLOR == 'red'", "COLOR == 'red' || !SHAPE == 'circle'",
+                "(COLOR == 'red' || !SHAPE == 'circle') && !SIZE == 'large'", "COLOR == 'red' &&", "COLOR = 'red'", "COLOR == 'red")) {
+            try {
+                QueryParser.parse(query);
+                Assert.fail("Expected " + query + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testQuotedValues() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        addDocument(map, "20200201_1", "uid1", "NAME", "o'brien", "PATH", "c:\\temp");
+        addDocument(map, "20200201_1", "uid2", "NAME", "obrien", "PATH", "c:\\temp");
+        Assert.assertEquals(Collections.singletonList("20200201_1/uid1"),
+                scan(map, "NAME == 'o\\'brien' && PATH == 'c:\\\\temp'", new Range()));
+    }
+
+    @Test
+    public void testShardsAndResume() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.putAll(generateShard("20200201_1"));
+        map.putAll(generateShard("20200201_2"));
+        map.putAll(generateShard("20200202_1"));
+
+        final List<String> all = scan(map, "COLOR == 'red' && SHAPE == 'circle'", new Range());
+        Assert.assertEquals(Arrays.asList("20200201_1/uid1", "20200201_1/uid5", "20200201_2/uid1", "20200201_2/uid5",
+                "20200202_1/uid1", "20200202_1/uid5"), all);
+
+        // resume after the second document, the way a scanner would after a failure
+        final FieldIndexQueryIterator iter = buildIterator(map, "COLOR == 'red' && SHAPE == 'circle'");
+        iter.seek(new Range(), Collections.EMPTY_LIST, false);
+        iter.next();
+        final Key resumeKey = new Key(iter.getTopKey());
+        Assert.assertEquals(DATATYPE + NULL + "uid5", resumeKey.getColumnFamily().toString());
+
+        final List<String> rest = scan(map, "COLOR == 'red' && SHAPE == 'circle'", new Range(resumeKey, false, null, false));
+        Assert.assertEquals(all.subList(2, all.size()), rest);
+
+        // a range ending within a shard stops there
+        Assert.assertEquals(all.subList(0, 3), scan(map, "COLOR == 'red' && SHAPE == 'circle'",
+                new Range(new Key("20200201_1"), true, new Key("20200201_2", DATATYPE + NULL + "uid2"), false)));
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        addDocument(map, "20200201_1", "uid1", "DATE", "20200101", "COLOR", "red");
+        addDocument(map, "20200201_1", "uid2", "DATE", "20200115", "COLOR", "blue");
+        addDocument(map, "20200201_1", "uid3", "DATE", "20200201", "COLOR", "red");
+        addDocument(map, "20200201_1", "uid4", "DATE", "20200301", "COLOR", "red");
+        final Range shard = new Range("20200201_1");
+
+        Assert.assertEquals(Arrays.asList("20200201_1/uid2", "20200201_1/uid3"),
+                scan(map, "DATE >= '20200115' && DATE <= '20200201'", shard));
+        Assert.assertEquals(Collections.singletonList("20200201_1/uid2"),
+                scan(map, "DATE > '20200101' && DATE < '20200201'", shard));
+        Assert.assertEquals(Arrays.asList("20200201_1/uid3", "20200201_1/uid4"),
+                scan(map, "DATE >= '20200201' && COLOR == 'red'", shard));
+        Assert.assertEquals(Collections.singletonList("20200201_1/uid1"),
+                scan(map, "COLOR == 'red' && DATE < '20200201' && !DATE == '20200301'", shard));
+    }
+
+    @Test
+    public void testPrefixAndRegex() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        addDocument(map, "20200201_1", "uid1", "NAME", "alice");
+        addDocument(map, "20200201_1", "uid2", "NAME", "albert");
+        addDocument(map, "20200201_1", "uid3", "NAME", "bob");
+        addDocument(map, "20200201_1", "uid4", "NAME", "al");
+        final Range shard = new Range("20200201_1");
+
+        Assert.assertEquals(Arrays.asList("20200201_1/uid1", "20200201_1/uid2", "20200201_1/uid4"), scan(map, "NAME =^ 'al'", shard));
+        Assert.assertEquals(Arrays.asList("20200201_1/uid1", "20200201_1/uid2"), scan(map, "NAME =~ 'al.+e.*'", shard));
+        Assert.assertEquals(Arrays.asList("20200201_1/uid3", "20200201_1/uid4"), scan(map, "NAME =~ 'bob|al'", shard));
+        Assert.assertEquals(Collections.singletonList("20200201_1/uid3"), scan(map, "NAME =~ '.*o.*'", shard));
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        Assert.assertEquals("abc", QueryNode.Expansion.literalPrefix("abc.*"));
+        Assert.assertEquals("ab", QueryNode.Expansion.literalPrefix("abc*"));
+        Assert.assertEquals("", QueryNode.Expansion.literalPrefix("a|b"));
+        Assert.assertEquals("", QueryNode.Expansion.literalPrefix(".*abc"));
+    }
+
+    @Test
+    public void testSpilledExpansion() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        for (int i = 0; i < 50; i++) {
+            // values and uids in opposite orders, so each spilled run is out of order
+            addDocument(map, "20200201_1", String.format("uid%02d", i), "NUMBER", String.format("%02d", 49 - i), "PARITY", i % 2 == 0 ? "even" : "odd");
+        }
+        final File directory = Files.createTempDirectory("spill").toFile();
+        try {
+            final Map<String,String> options = new HashMap<>();
+            options.put(FieldIndexQueryIterator.QUERY, "NUMBER >= '10' && PARITY == 'even'");
+            options.put(FieldIndexQueryIterator.EXPANSION_BUFFER, "4");
+            options.put(FieldIndexQueryIterator.SPILL_DIRECTORY, directory.getAbsolutePath());
+            final FieldIndexQueryIterator iter = new FieldIndexQueryIterator();
+            iter.init(new SortedMapIterator(map), options, new MockIteratorEnvironment());
+            iter.seek(new Range(), Collections.EMPTY_LIST, false);
+            // runs are unlinked while they are still being merged
+            Assert.assertTrue(iter.hasTop());
+            Assert.assertEquals(0, directory.listFiles().length);
+            int count = 0;
+            String previous = "";
+            while (iter.hasTop()) {
+                final String cf = iter.getTopKey().getColumnFamily().toString();
+                Assert.assertTrue(cf.compareTo(previous) > 0);
+                previous = cf;
+                count++;
+                iter.next();
+            }
+            // uids 00 through 39 have numbers of at least 10, half of them even
+            Assert.assertEquals(20, count);
+            Assert.assertEquals(0, directory.listFiles().length);
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testReturnFields() throws IOException {
+        final Map<String,String> options = new HashMap<>();
+        options.put(FieldIndexQueryIterator.QUERY, "COLOR == 'red' && SHAPE == 'square'");
+        options.put(FieldIndexQueryIterator.RETURN_FIELDS, "SIZE");
+        final FieldIndexQueryIterator iter = new FieldIndexQueryIterator();
+        iter.init(new SortedMapIterator(generateShard("20200201_1")), options, new MockIteratorEnvironment());
+        iter.seek(new Range(), Collections.EMPTY_LIST, false);
+        Assert.assertTrue(iter.hasTop());
+        final Document doc = new ObjectMapper().readValue(iter.getTopValue().get(), Document.class);
+        Assert.assertEquals("uid3", doc.docId);
+        Assert.assertEquals(Collections.singletonMap("SIZE", "large"), doc.getDocumentFields());
+    }
+
+    @Test
+    public void testFieldsToSkip() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        addDocument(map, "20200201_1", "uid1", "COLOR", "red", "LOAD_DATE", "20200201");
+        final FieldIndexQueryIterator iter = buildIterator(map, "COLOR == 'red'");
+        iter.seek(new Range(), Collections.EMPTY_LIST, false);
+        Assert.assertTrue(iter.hasTop());
+        final Document doc = new ObjectMapper().readValue(iter.getTopValue().get(), Document.class);
+        Assert.assertEquals(Collections.singletonMap("COLOR", "red"), doc.getDocumentFields());
+    }
+}
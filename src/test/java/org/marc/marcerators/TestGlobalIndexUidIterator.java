@@ -0,0 +1,172 @@
+package org.marc.marcerators;
+
+import datawave.ingest.protobuf.Uid;
+import org.apache.accumulo.core.data.*;
+import org.apache.accumulo.core.iterators.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+public class TestGlobalIndexUidIterator {
+
+    public static final String NULL = "\u0000";
+    public static final String SHARD = "20200201_1";
+    public static final String DATATYPE = "dataType";
+
+    static Value uids(final boolean ignore, final Collection<String> uids, final Collection<String> removed, final Collection<String> quarantined) {
+        final Uid.List.Builder builder = Uid.List.newBuilder();
+        builder.setIGNORE(ignore);
+        builder.setCOUNT(uids.size());
+        builder.addAllUID(uids);
+        builder.addAllREMOVEDUID(removed);
+        quarantined.forEach(builder::addQUARANTINEUID);
+        return new Value(builder.build().toByteArray());
+    }
+
+    static List<Key> scan(final SortedMap<Key,Value> map, final Range range) throws IOException {
+        final GlobalIndexUidIterator iter = new GlobalIndexUidIterator();
+        iter.init(new SortedMapIterator(map), new HashMap<>(), new MockIteratorEnvironment());
+        iter.seek(range, Collections.EMPTY_LIST, false);
+        final List<Key> keys = new ArrayList<>();
+        while (iter.hasTop()) {
+            keys.add(new Key(iter.getTopKey()));
+            iter.next();
+        }
+        return keys;
+    }
+
+    static List<String> uidsOf(final List<Key> keys) {
+        final List<String> uids = new ArrayList<>();
+        for (Key key : keys) {
+            final String cq = key.getColumnQualifier().toString();
+            uids.add(cq.substring(cq.lastIndexOf(NULL) + 1));
+        }
+        return uids;
+    }
+
+    @Test
+    public void testRemovedAndQuarantined() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", SHARD + NULL + DATATYPE), uids(false, Arrays.asList("uid3", "uid1", "uid2", "uid4"),
+                Collections.singletonList("uid2"), Collections.singletonList("uid4")));
+
+        final List<Key> keys = scan(map, new Range("value"));
+        Assert.assertEquals(Arrays.asList("uid1", "uid3"), uidsOf(keys));
+        for (Key key : keys) {
+            Assert.assertFalse(GlobalIndexUidIterator.isShardCandidate(key));
+            Assert.assertTrue(key.getColumnQualifier().toString().startsWith(SHARD + NULL + DATATYPE + NULL));
+        }
+    }
+
+    @Test
+    public void testSingleVersionStreamed() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        final List<String> sorted = new ArrayList<>();
+        for (int uid = 0; uid < 1000; uid++) {
+            sorted.add(String.format("uid.%010d", uid));
+        }
+        map.put(new Key("value", "FIELDA", SHARD + NULL + DATATYPE), uids(false, sorted, Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+        // unsorted and repeated uids of a single version are merged rather than streamed
+        map.put(new Key("value", "FIELDA", "20200202_1" + NULL + DATATYPE), uids(false, Arrays.asList("uid3", "uid1", "uid3"),
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+
+        final List<Key> all = scan(map, new Range("value"));
+        final List<String> expected = new ArrayList<>(sorted);
+        expected.addAll(Arrays.asList("uid1", "uid3"));
+        Assert.assertEquals(expected, uidsOf(all));
+
+        // a range ending part way through the streamed entry
+        final Range partial = new Range(new Key("value"), true, all.get(500), true);
+        Assert.assertEquals(sorted.subList(0, 501), uidsOf(scan(map, partial)));
+    }
+
+    @Test
+    public void testVisibilitiesMerged() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", SHARD + NULL + DATATYPE, "A"), uids(false, Arrays.asList("uid1", "uid2"),
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+        // removal under another visibility still wins
+        map.put(new Key("value", "FIELDA", SHARD + NULL + DATATYPE, "B"), uids(false, Collections.singletonList("uid3"),
+                Collections.singletonList("uid1"), Collections.EMPTY_LIST));
+
+        Assert.assertEquals(Arrays.asList("uid2", "uid3"), uidsOf(scan(map, new Range("value"))));
+    }
+
+    @Test
+    public void testIgnoreIsShardCandidate() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", SHARD + NULL + DATATYPE), uids(true, Collections.EMPTY_LIST,
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+
+        final List<Key> keys = scan(map, new Range("value"));
+        Assert.assertEquals(1, keys.size());
+        Assert.assertTrue(GlobalIndexUidIterator.isShardCandidate(keys.get(0)));
+
+        final Range range = GlobalIndexUidIterator.toDocumentRange(keys.get(0));
+        Assert.assertTrue(range.contains(new Key(SHARD, DATATYPE + NULL + "uid1", "FIELDA" + NULL + "value")));
+        Assert.assertFalse(range.contains(new Key(SHARD, DATATYPE + "2" + NULL + "uid1", "FIELDA" + NULL + "value")));
+        Assert.assertFalse(range.contains(new Key(SHARD, "fi" + NULL + "FIELDA", "value" + NULL + DATATYPE + NULL + "uid1")));
+    }
+
+    @Test
+    public void testDocumentRange() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", SHARD + NULL + DATATYPE), uids(false, Collections.singletonList("uid1"),
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+
+        final Range range = GlobalIndexUidIterator.toDocumentRange(scan(map, new Range("value")).get(0));
+        Assert.assertTrue(range.contains(new Key(SHARD, DATATYPE + NULL + "uid1", "FIELDA" + NULL + "value")));
+        Assert.assertFalse(range.contains(new Key(SHARD, DATATYPE + NULL + "uid10", "FIELDA" + NULL + "value")));
+
+        // the range feeds straight into the field index merging iterator
+        final SortedMap<Key,Value> shard = new TreeMap<>();
+        shard.put(new Key(SHARD, DATATYPE + NULL + "uid1", "FIELDA" + NULL + "value"), new Value());
+        shard.put(new Key(SHARD, "fi" + NULL + "FIELDA", "value" + NULL + DATATYPE + NULL + "uid1"), new Value());
+        final FieldIndexMergingIterator iter = new FieldIndexMergingIterator();
+        iter.init(new SortedMapIterator(shard), new HashMap<>(), new MockIteratorEnvironment());
+        iter.seek(range, Collections.EMPTY_LIST, false);
+        Assert.assertTrue(iter.hasTop());
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", SHARD + NULL + DATATYPE), uids(false, Arrays.asList("uid1", "uid2", "uid3"),
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", "20200202_1" + NULL + DATATYPE), uids(false, Collections.singletonList("uid4"),
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+
+        final List<Key> all = scan(map, new Range("value"));
+        Assert.assertEquals(Arrays.asList("uid1", "uid2", "uid3", "uid4"), uidsOf(all));
+
+        final Range resumed = new Range(all.get(1), false, new Key("value").followingKey(PartialKey.ROW), false);
+        Assert.assertEquals(Arrays.asList("uid3", "uid4"), uidsOf(scan(map, resumed)));
+    }
+
+    @Test
+    public void testResumeAfterIgnore() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        // an IGNORE entry under two visibilities, followed by another shard
+        map.put(new Key("value", "FIELDA", SHARD + NULL + DATATYPE, "A"), uids(true, Collections.EMPTY_LIST,
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", SHARD + NULL + DATATYPE, "B"), uids(false, Collections.singletonList("uid1"),
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", "20200202_1" + NULL + DATATYPE), uids(false, Collections.singletonList("uid4"),
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST));
+
+        final List<Key> all = scan(map, new Range("value"));
+        Assert.assertEquals(2, all.size());
+        Assert.assertTrue(GlobalIndexUidIterator.isShardCandidate(all.get(0)));
+
+        // torn down after the candidate, the scan resumes just after it with the first version's visibility
+        final Range resumed = new Range(all.get(0), false, new Key("value").followingKey(PartialKey.ROW), false);
+        final List<Key> keys = scan(map, resumed);
+        Assert.assertEquals(Collections.singletonList("uid4"), uidsOf(keys));
+        Assert.assertFalse(GlobalIndexUidIterator.isShardCandidate(keys.get(0)));
+
+        // resumed inclusively the candidate is returned again, once
+        Assert.assertEquals(all, scan(map, new Range(all.get(0), true, new Key("value").followingKey(PartialKey.ROW), false)));
+    }
+}
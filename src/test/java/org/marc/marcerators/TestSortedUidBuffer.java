@@ -0,0 +1,85 @@
+package org.marc.marcerators;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+public class TestSortedUidBuffer {
+
+    static List<String> readAll(final SortedUidBuffer buffer) throws IOException {
+        final List<String> uids = new ArrayList<>();
+        for (; null != buffer.current(); buffer.next()) {
+            uids.add(new String(buffer.current(), StandardCharsets.UTF_8));
+        }
+        return uids;
+    }
+
+    static void addAll(final SortedUidBuffer buffer, final String... uids) throws IOException {
+        for (String uid : uids) {
+            buffer.add(uid.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testInMemory() throws IOException {
+        try (SortedUidBuffer buffer = new SortedUidBuffer(100, null)) {
+            addAll(buffer, "uid3", "uid1", "uid2", "uid1");
+            buffer.finish();
+            Assert.assertEquals(0, buffer.getSpillCount());
+            Assert.assertEquals(Arrays.asList("uid1", "uid2", "uid3"), readAll(buffer));
+        }
+    }
+
+    @Test
+    public void testSpilled() throws IOException {
+        final File directory = Files.createTempDirectory("spill").toFile();
+        try (SortedUidBuffer buffer = new SortedUidBuffer(2, directory)) {
+            addAll(buffer, "uid5", "uid1", "uid3", "uid1", "uid4", "uid2", "uid5");
+            buffer.finish();
+            Assert.assertTrue(buffer.getSpillCount() > 1);
+            // runs are unlinked once their readers are open
+            Assert.assertEquals(0, directory.listFiles().length);
+            Assert.assertEquals(Arrays.asList("uid1", "uid2", "uid3", "uid4", "uid5"), readAll(buffer));
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testClearDeletesRuns() throws IOException {
+        final File directory = Files.createTempDirectory("spill").toFile();
+        try (SortedUidBuffer buffer = new SortedUidBuffer(2, directory)) {
+            addAll(buffer, "uid5", "uid1", "uid3", "uid4");
+            Assert.assertEquals(2, directory.listFiles().length);
+            buffer.clear();
+            Assert.assertEquals(0, buffer.getSpillCount());
+            Assert.assertEquals(0, directory.listFiles().length);
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testAdvance() throws IOException {
+        final File directory = Files.createTempDirectory("spill").toFile();
+        for (int maxInMemory : new int[]{2, 100}) {
+            try (SortedUidBuffer buffer = new SortedUidBuffer(maxInMemory, directory)) {
+                addAll(buffer, "a", "c", "e", "g", "i");
+                buffer.finish();
+                buffer.advance("d".getBytes(StandardCharsets.UTF_8));
+                Assert.assertEquals("e", new String(buffer.current(), StandardCharsets.UTF_8));
+                buffer.advance("e".getBytes(StandardCharsets.UTF_8));
+                Assert.assertEquals("e", new String(buffer.current(), StandardCharsets.UTF_8));
+                buffer.advance("z".getBytes(StandardCharsets.UTF_8));
+                Assert.assertNull(buffer.current());
+            }
+        }
+        Assert.assertEquals(0, directory.listFiles().length);
+        directory.delete();
+    }
+}
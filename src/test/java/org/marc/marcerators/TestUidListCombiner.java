@@ -0,0 +1,152 @@
+package org.marc.marcerators;
+
+import datawave.ingest.protobuf.Uid;
+import org.apache.accumulo.core.data.*;
+import org.apache.accumulo.core.iterators.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+public class TestUidListCombiner {
+
+    public static final String NULL = "\u0000";
+    public static final String ENTRY_CQ = "20200201_1" + NULL + "dataType";
+
+    static IteratorEnvironment compactionEnvironment(final boolean full) {
+        return new MockIteratorEnvironment() {
+            @Override
+            public IteratorUtil.IteratorScope getIteratorScope() {
+                return IteratorUtil.IteratorScope.majc;
+            }
+
+            @Override
+            public boolean isFullMajorCompaction() {
+                return full;
+            }
+        };
+    }
+
+    static Value list(final long count, final Collection<String> uids, final Collection<String> removed) {
+        return new Value(Uid.List.newBuilder().setIGNORE(false).setCOUNT(count).addAllUID(uids).addAllREMOVEDUID(removed).build().toByteArray());
+    }
+
+    static Uid.List combine(final SortedMap<Key,Value> map, final Map<String,String> options, final IteratorEnvironment env) throws IOException {
+        final Map<String,String> combinerOptions = new HashMap<>(options);
+        combinerOptions.put(Combiner.ALL_OPTION, "true");
+        final UidListCombiner combiner = new UidListCombiner();
+        combiner.init(new SortedMapIterator(map), combinerOptions, env);
+        combiner.seek(new Range(), Collections.EMPTY_LIST, false);
+        Assert.assertTrue(combiner.hasTop());
+        final Uid.List list = Uid.List.parseFrom(combiner.getTopValue().get());
+        combiner.next();
+        Assert.assertFalse(combiner.hasTop());
+        return list;
+    }
+
+    @Test
+    public void testMergeAndRemove() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 3), list(2, Arrays.asList("uid3", "uid1"), Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 2), list(1, Collections.singletonList("uid2"), Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 1), list(0, Collections.EMPTY_LIST, Collections.singletonList("uid1")));
+
+        final Uid.List list = combine(map, new HashMap<>(), compactionEnvironment(false));
+        Assert.assertFalse(list.getIGNORE());
+        Assert.assertEquals(2, list.getCOUNT());
+        Assert.assertEquals(Arrays.asList("uid2", "uid3"), list.getUIDList());
+        // a partial compaction has to keep the removal for older files
+        Assert.assertEquals(Collections.singletonList("uid1"), list.getREMOVEDUIDList());
+
+        final Uid.List full = combine(map, new HashMap<>(), compactionEnvironment(true));
+        Assert.assertEquals(Arrays.asList("uid2", "uid3"), full.getUIDList());
+        Assert.assertEquals(0, full.getREMOVEDUIDCount());
+    }
+
+    @Test
+    public void testCountOfDistinctUids() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 3), list(2, Arrays.asList("uid1", "uid2"), Collections.EMPTY_LIST));
+        // the same uids written again, as a replayed ingest would
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 2), list(2, Arrays.asList("uid2", "uid1"), Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 1), list(1, Collections.singletonList("uid3"), Collections.EMPTY_LIST));
+
+        final Uid.List list = combine(map, new HashMap<>(), compactionEnvironment(false));
+        Assert.assertEquals(3, list.getCOUNT());
+        Assert.assertEquals(Arrays.asList("uid1", "uid2", "uid3"), list.getUIDList());
+    }
+
+    @Test
+    public void testQuarantineDroppedOnFullCompaction() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 2), list(2, Arrays.asList("uid1", "uid2"), Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 1), new Value(Uid.List.newBuilder().setIGNORE(false).setCOUNT(0).addQUARANTINEUID("uid1").build().toByteArray()));
+
+        final Uid.List partial = combine(map, new HashMap<>(), compactionEnvironment(false));
+        Assert.assertEquals(Collections.singletonList("uid2"), partial.getUIDList());
+        Assert.assertEquals(1, partial.getCOUNT());
+        Assert.assertEquals(Collections.singletonList("uid1"), partial.getQUARANTINEUIDList());
+
+        final Uid.List full = combine(map, new HashMap<>(), compactionEnvironment(true));
+        Assert.assertEquals(Collections.singletonList("uid2"), full.getUIDList());
+        Assert.assertEquals(0, full.getQUARANTINEUIDCount());
+        Assert.assertEquals(0, full.getREMOVEDUIDCount());
+    }
+
+    @Test
+    public void testIgnoreOverLimit() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 2), list(2, Arrays.asList("uid1", "uid2"), Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 1), list(2, Arrays.asList("uid3", "uid4"), Collections.EMPTY_LIST));
+
+        final Map<String,String> options = new HashMap<>();
+        options.put(UidListCombiner.MAX_UIDS, "3");
+        final Uid.List list = combine(map, options, compactionEnvironment(false));
+        Assert.assertTrue(list.getIGNORE());
+        Assert.assertEquals(4, list.getCOUNT());
+        Assert.assertEquals(0, list.getUIDCount());
+        Assert.assertEquals(0, list.getREMOVEDUIDCount());
+
+        // an ignored input keeps the result ignored
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 0), new Value(Uid.List.newBuilder().setIGNORE(true).setCOUNT(100).build().toByteArray()));
+        final Uid.List ignored = combine(map, new HashMap<>(), compactionEnvironment(false));
+        Assert.assertTrue(ignored.getIGNORE());
+        Assert.assertEquals(104, ignored.getCOUNT());
+    }
+
+    @Test
+    public void testWithinLimitAfterRemoval() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 2), list(4, Arrays.asList("uid1", "uid2", "uid3", "uid4"), Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 1), list(0, Collections.EMPTY_LIST, Arrays.asList("uid1", "uid2")));
+
+        final Map<String,String> options = new HashMap<>();
+        options.put(UidListCombiner.MAX_UIDS, "3");
+        final Uid.List list = combine(map, options, compactionEnvironment(true));
+        Assert.assertFalse(list.getIGNORE());
+        Assert.assertEquals(Arrays.asList("uid3", "uid4"), list.getUIDList());
+    }
+
+    @Test
+    public void testFeedsGlobalIndexIterator() throws IOException {
+        final SortedMap<Key,Value> map = new TreeMap<>();
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 2), list(1, Collections.singletonList("uid2"), Collections.EMPTY_LIST));
+        map.put(new Key("value", "FIELDA", ENTRY_CQ, 1), list(1, Collections.singletonList("uid1"), Collections.EMPTY_LIST));
+
+        final Map<String,String> options = new HashMap<>();
+        options.put(Combiner.ALL_OPTION, "true");
+        final UidListCombiner combiner = new UidListCombiner();
+        combiner.init(new SortedMapIterator(map), options, compactionEnvironment(false));
+        final GlobalIndexUidIterator iter = new GlobalIndexUidIterator();
+        iter.init(combiner, new HashMap<>(), new MockIteratorEnvironment());
+        iter.seek(new Range(), Collections.EMPTY_LIST, false);
+
+        final List<String> cqs = new ArrayList<>();
+        while (iter.hasTop()) {
+            cqs.add(iter.getTopKey().getColumnQualifier().toString());
+            iter.next();
+        }
+        Assert.assertEquals(Arrays.asList(ENTRY_CQ + NULL + "uid1", ENTRY_CQ + NULL + "uid2"), cqs);
+    }
+}
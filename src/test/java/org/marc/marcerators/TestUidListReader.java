@@ -0,0 +1,109 @@
+package org.marc.marcerators;
+
+import datawave.ingest.protobuf.Uid;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class TestUidListReader {
+
+    @Test
+    public void testMatchesParser() throws IOException {
+        final Uid.List list = Uid.List.newBuilder().setIGNORE(false).setCOUNT(300)
+                .addAllUID(Arrays.asList("uid1", "uid2", "uid3"))
+                .addREMOVEDUID("uid4")
+                .addQUARANTINEUID("uid5")
+                .build();
+
+        final UidListReader reader = new UidListReader(list.toByteArray());
+        Assert.assertFalse(reader.isIgnore());
+        Assert.assertEquals(300, reader.getCount());
+
+        final List<String> uids = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+        final List<String> quarantined = new ArrayList<>();
+        for (int field = reader.nextEntry(); field >= 0; field = reader.nextEntry()) {
+            final String uid = new String(reader.copyEntry(), StandardCharsets.UTF_8);
+            Assert.assertEquals(uid, reader.entry().toString());
+            if (field == UidListReader.UID) {
+                uids.add(uid);
+            } else if (field == UidListReader.REMOVEDUID) {
+                removed.add(uid);
+            } else {
+                Assert.assertEquals(UidListReader.QUARANTINEUID, field);
+                quarantined.add(uid);
+            }
+        }
+        Assert.assertEquals(list.getUIDList(), uids);
+        Assert.assertEquals(list.getREMOVEDUIDList(), removed);
+        Assert.assertEquals(list.getQUARANTINEUIDList(), quarantined);
+    }
+
+    @Test
+    public void testIgnoreWithoutUids() throws IOException {
+        final Uid.List list = Uid.List.newBuilder().setIGNORE(true).setCOUNT(1L << 40).build();
+
+        final UidListReader reader = new UidListReader(list.toByteArray());
+        Assert.assertTrue(reader.isIgnore());
+        Assert.assertEquals(1L << 40, reader.getCount());
+        Assert.assertEquals(-1, reader.nextEntry());
+    }
+
+    @Test
+    public void testReset() throws IOException {
+        final byte[] first = Uid.List.newBuilder().setIGNORE(false).setCOUNT(1).addUID("uid1").build().toByteArray();
+        final byte[] second = Uid.List.newBuilder().setIGNORE(false).setCOUNT(1).addUID("uid2").build().toByteArray();
+        final byte[] buffer = new byte[first.length + second.length];
+        System.arraycopy(first, 0, buffer, 0, first.length);
+        System.arraycopy(second, 0, buffer, first.length, second.length);
+
+        final UidListReader reader = new UidListReader();
+        reader.reset(buffer, first.length, second.length);
+        Assert.assertEquals(UidListReader.UID, reader.nextEntry());
+        Assert.assertEquals("uid2", reader.entry().toString());
+        Assert.assertEquals(-1, reader.nextEntry());
+
+        reader.reset(buffer, 0, first.length);
+        Assert.assertEquals(UidListReader.UID, reader.nextEntry());
+        Assert.assertEquals("uid1", reader.entry().toString());
+    }
+
+    @Test
+    public void testUnknownFieldsSkipped() throws IOException {
+        final byte[] list = Uid.List.newBuilder().setIGNORE(false).setCOUNT(1).addUID("uid1").build().toByteArray();
+        // field 6 varint and field 7 length delimited
+        final byte[] extra = {(6 << 3), 0x05, (7 << 3) | 2, 0x02, 'x', 'y'};
+        final byte[] bytes = Arrays.copyOf(extra, extra.length + list.length);
+        System.arraycopy(list, 0, bytes, extra.length, list.length);
+
+        final UidListReader reader = new UidListReader(bytes);
+        Assert.assertEquals(1, reader.getCount());
+        Assert.assertEquals(UidListReader.UID, reader.nextEntry());
+        Assert.assertEquals("uid1", reader.entry().toString());
+        Assert.assertEquals(-1, reader.nextEntry());
+    }
+
+    @Test
+    public void testMalformed() {
+        final byte[] list = Uid.List.newBuilder().setIGNORE(false).setCOUNT(1).addUID("uid1").build().toByteArray();
+        final int header = Uid.List.newBuilder().setIGNORE(false).setCOUNT(1).build().toByteArray().length;
+        for (int length = 0; length < list.length; length++) {
+            if (length == header) {
+                // a complete list without uids
+                continue;
+            }
+            final byte[] truncated = Arrays.copyOf(list, length);
+            try {
+                final UidListReader reader = new UidListReader(truncated);
+                while (reader.nextEntry() >= 0) {
+                }
+                Assert.fail("Expected truncated list of length " + length + " to fail");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}